@@ -0,0 +1,639 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.craftinginterpreters.lox.Expr.AnonFun;
+import com.craftinginterpreters.lox.Expr.Assign;
+import com.craftinginterpreters.lox.Expr.Binary;
+import com.craftinginterpreters.lox.Expr.Call;
+import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Grouping;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
+import com.craftinginterpreters.lox.Expr.Literal;
+import com.craftinginterpreters.lox.Expr.Logical;
+import com.craftinginterpreters.lox.Expr.Super;
+import com.craftinginterpreters.lox.Expr.This;
+import com.craftinginterpreters.lox.Expr.Unary;
+import com.craftinginterpreters.lox.Expr.Variable;
+import com.craftinginterpreters.lox.Stmt.Block;
+import com.craftinginterpreters.lox.Stmt.Break;
+import com.craftinginterpreters.lox.Stmt.Class;
+import com.craftinginterpreters.lox.Stmt.Expression;
+import com.craftinginterpreters.lox.Stmt.For;
+import com.craftinginterpreters.lox.Stmt.Function;
+import com.craftinginterpreters.lox.Stmt.If;
+import com.craftinginterpreters.lox.Stmt.Import;
+import com.craftinginterpreters.lox.Stmt.Print;
+import com.craftinginterpreters.lox.Stmt.Return;
+import com.craftinginterpreters.lox.Stmt.Var;
+import com.craftinginterpreters.lox.Stmt.While;
+
+// The resolved tree of a script, kept in a file next to it (--cache) so that a later run of the
+// same script skips scanning, parsing and resolution. The file holds the SHA-256 of the source
+// it was made from and is only used while the source still has that hash.
+//
+// It is the tree as the Resolver leaves it, with its slots, depths and captures - the Optimizer
+// runs after loading, as it does after resolving, and the runtime annotations (specializations,
+// inline caches, call counts) start out fresh. Nodes are a tag and their fields in order, and
+// strings are written once and then referred to by index.
+final class AstCache {
+
+    static boolean enabled = false;
+
+    private static final int MAGIC = 0x4a4c5843;  // "JLXC"
+    // changes with the node layout.
+    private static final int VERSION = 2;
+
+    private AstCache() {}
+
+    private static Path cacheFile(Path script) {
+        return Paths.get(script.toString() + ".cache");
+    }
+
+    // The cached statements of the script, null when there are none for this source. The
+    // globals the program assigns (see Resolver.assignedGlobals) are added to assignedGlobals.
+    static List<Stmt> load(Path script, MappedSource source, Set<String> assignedGlobals) {
+        Path file = cacheFile(script);
+        if(!Files.exists(file)) return null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            byte[] hash = new byte[32];
+            in.readFully(hash);
+            if(!Arrays.equals(hash, hash(source))) return null;
+
+            Reader reader = new Reader(in);
+            int count = readInt(in);
+            for(int i = 0; i < count; i++) {
+                assignedGlobals.add(reader.string());
+            }
+            return reader.statements();
+        } catch(IOException | RuntimeException unreadable) {
+            // an old or damaged file - the script is compiled again, and the file replaced.
+            return null;
+        }
+    }
+
+    // Saves the resolved statements - failing quietly, as the cache is only an optimization.
+    static void save(Path script, MappedSource source, List<Stmt> statements, Set<String> assignedGlobals) {
+        Path file = cacheFile(script);
+        try {
+            // written aside and moved into place, for other runs reading it meanwhile.
+            Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), ".jlox", ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(hash(source));
+
+                Writer writer = new Writer(out);
+                writeInt(out, assignedGlobals.size());
+                for(String name : assignedGlobals) {
+                    writer.string(name);
+                }
+                writer.statements(statements);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException | RuntimeException unwritable) {
+            // no cache - the next run compiles the script again.
+        }
+    }
+
+    private static byte[] hash(MappedSource source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.bytes());
+            return digest.digest();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Ints are variable-length, in 7-bit groups with the low ones first - most are small - and
+    // zigzag-encoded, for the negative depths and slots.
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        int bits = (value << 1) ^ (value >> 31);
+        while((bits & ~0x7f) != 0) {
+            out.writeByte((bits & 0x7f) | 0x80);
+            bits >>>= 7;
+        }
+        out.writeByte(bits);
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        int bits = 0;
+        for(int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            bits |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) break;
+        }
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+
+    // node tags - 0 is a missing (null) node.
+    private static final int BINARY = 1;
+    private static final int CALL = 2;
+    private static final int INVOKE = 3;
+    private static final int GET = 4;
+    private static final int SET = 5;
+    private static final int THIS = 6;
+    private static final int SUPER = 7;
+    private static final int GROUPING = 8;
+    private static final int LITERAL = 9;
+    private static final int LOGICAL = 10;
+    private static final int UNARY = 11;
+    private static final int VARIABLE = 12;
+    private static final int ANON_FUN = 13;
+    private static final int ASSIGN = 14;
+    private static final int INLINE = 15;
+
+    private static final int BLOCK = 16;
+    private static final int CLASS = 17;
+    private static final int EXPRESSION = 18;
+    private static final int FUNCTION = 19;
+    private static final int PRINT = 20;
+    private static final int VAR = 21;
+    private static final int RETURN = 22;
+    private static final int IF = 23;
+    private static final int WHILE = 24;
+    private static final int FOR = 25;
+    private static final int BREAK = 26;
+    private static final int IMPORT = 27;
+
+    // literal tags.
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int line = 0;
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        // the visitors cannot throw IOException - it travels out wrapped.
+        private void write(int tag, Object... fields) {
+            try {
+                out.writeByte(tag);
+                for(Object field : fields) {
+                    field(field);
+                }
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void field(Object field) throws IOException {
+            if(field instanceof Expr) {
+                ((Expr)field).accept(this);
+            } else if(field instanceof Stmt) {
+                ((Stmt)field).accept(this);
+            } else if(field instanceof Token) {
+                token((Token)field);
+            } else if(field instanceof String) {
+                string((String)field);
+            } else if(field instanceof Integer) {
+                writeInt(out, (Integer)field);
+            } else if(field instanceof Boolean) {
+                out.writeBoolean((Boolean)field);
+            } else if(field instanceof int[]) {
+                int[] values = (int[])field;
+                writeInt(out, values.length);
+                for(int value : values) {
+                    writeInt(out, value);
+                }
+            } else if(field instanceof List) {
+                List<?> list = (List<?>)field;
+                writeInt(out, list.size());
+                for(Object element : list) {
+                    field(element);
+                }
+            } else {
+                // a missing node.
+                out.writeByte(0);
+            }
+        }
+
+        void statements(List<Stmt> statements) throws IOException {
+            field(statements);
+        }
+
+        // Only the parser reads a token's literal, so it is left out. Lines are written as the
+        // difference from the previous token's - mostly 0.
+        private void token(Token token) throws IOException {
+            out.writeByte(token.type.ordinal());
+            string(token.lexeme);
+            writeInt(out, token.line - line);
+            line = token.line;
+        }
+
+        private void literal(Object value) throws IOException {
+            if(value == null) {
+                out.writeByte(NIL);
+            } else if(value instanceof Boolean) {
+                out.writeByte((Boolean)value ? TRUE : FALSE);
+            } else if(value instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((Double)value);
+            } else {
+                out.writeByte(STRING);
+                string(value.toString());
+            }
+        }
+
+        // A string's index - one not written before is written after it.
+        void string(String value) throws IOException {
+            Integer index = strings.get(value);
+            if(index != null) {
+                writeInt(out, index);
+                return;
+            }
+            strings.put(value, strings.size());
+            writeInt(out, -1);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Binary expr) {
+            write(BINARY, expr.left, expr.operator, expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Call expr) {
+            write(CALL, expr.callee, expr.paren, expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitInvokeExpr(Invoke expr) {
+            write(INVOKE, expr.object, expr.name, expr.paren, expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Get expr) {
+            write(GET, expr.object, expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            write(SET, expr.object, expr.name, expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(This expr) {
+            write(THIS, expr.keyword, expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Super expr) {
+            write(SUPER, expr.keyword, expr.method, expr.depth, expr.slot, expr.thisDepth, expr.thisSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Grouping expr) {
+            write(GROUPING, expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Literal expr) {
+            write(LITERAL);
+            try {
+                literal(expr.value);
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Logical expr) {
+            write(LOGICAL, expr.left, expr.operator, expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Unary expr) {
+            write(UNARY, expr.operator, expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Variable expr) {
+            write(VARIABLE, expr.name, expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitAnonFunExpr(AnonFun expr) {
+            write(ANON_FUN, expr.params, expr.body, expr.frameSize, expr.boxedParams,
+                  expr.captureDepths, expr.captureSlots);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Assign expr) {
+            write(ASSIGN, expr.name, expr.value, expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitInlineExpr(Inline expr) {
+            write(INLINE, expr.call, expr.body, expr.slots);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Block stmt) {
+            write(BLOCK, stmt.statements, stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Class stmt) {
+            write(CLASS, stmt.name, stmt.superClass, stmt.methods, stmt.slot, stmt.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Expression stmt) {
+            write(EXPRESSION, stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Function stmt) {
+            write(FUNCTION, stmt.name, stmt.params, stmt.body, stmt.slot, stmt.boxed, stmt.frameSize,
+                  stmt.boxedParams, stmt.captureDepths, stmt.captureSlots);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Print stmt) {
+            write(PRINT, stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Var stmt) {
+            write(VAR, stmt.name, stmt.initializer, stmt.slot, stmt.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Return stmt) {
+            write(RETURN, stmt.keyword, stmt.value, stmt.tailCall);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(If stmt) {
+            write(IF, stmt.condition, stmt.thenBranch, stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(While stmt) {
+            write(WHILE, stmt.condition, stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(For stmt) {
+            write(FOR, stmt.initializer, stmt.condition, stmt.increment, stmt.body, stmt.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Break stmt) {
+            write(BREAK, stmt.token);
+            return null;
+        }
+
+        // the module is loaded again with the script (see Module.link).
+        @Override
+        public Void visitImportStmt(Import stmt) {
+            write(IMPORT, stmt.keyword, stmt.path);
+            return null;
+        }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+        private int line = 0;
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = readInt(in);
+            List<Stmt> statements = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private List<Expr> exprs() throws IOException {
+            int count = readInt(in);
+            List<Expr> exprs = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                exprs.add(expr());
+            }
+            return exprs;
+        }
+
+        private List<Token> tokens() throws IOException {
+            int count = readInt(in);
+            List<Token> tokens = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                tokens.add(token());
+            }
+            return tokens;
+        }
+
+        private int[] ints() throws IOException {
+            int[] values = new int[readInt(in)];
+            for(int i = 0; i < values.length; i++) {
+                values[i] = readInt(in);
+            }
+            return values;
+        }
+
+        private Token token() throws IOException {
+            TokenType type = TokenType.values()[in.readUnsignedByte()];
+            // names are the JVM's Strings, as the scanner's symbols, so the runtime finds them by
+            // identity.
+            String lexeme = string().intern();
+            line += readInt(in);
+            return new Token(type, lexeme, null, line);
+        }
+
+        private Object literal() throws IOException {
+            switch(in.readUnsignedByte()) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return in.readDouble();
+                case STRING: return string();
+            }
+            throw new IllegalStateException("Bad literal.");
+        }
+
+        String string() throws IOException {
+            int index = readInt(in);
+            if(index >= 0) return strings.get(index);
+
+            byte[] bytes = new byte[readInt(in)];
+            in.readFully(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        private Expr expr() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch(tag) {
+                case 0: return null;
+                case BINARY: return new Binary(expr(), token(), expr());
+                case CALL: return new Call(expr(), token(), exprs());
+                case INVOKE: return new Invoke(expr(), token(), token(), exprs());
+                case GET: return new Get(expr(), token());
+                case SET: return new Expr.Set(expr(), token(), expr());
+                case THIS: {
+                    This expr = new This(token());
+                    expr.depth = readInt(in);
+                    expr.slot = readInt(in);
+                    return expr;
+                }
+                case SUPER: {
+                    Super expr = new Super(token(), token());
+                    expr.depth = readInt(in);
+                    expr.slot = readInt(in);
+                    expr.thisDepth = readInt(in);
+                    expr.thisSlot = readInt(in);
+                    return expr;
+                }
+                case GROUPING: return new Grouping(expr());
+                case LITERAL: return new Literal(literal());
+                case LOGICAL: return new Logical(expr(), token(), expr());
+                case UNARY: return new Unary(token(), expr());
+                case VARIABLE: {
+                    Variable expr = new Variable(token());
+                    expr.depth = readInt(in);
+                    expr.slot = readInt(in);
+                    return expr;
+                }
+                case ANON_FUN: {
+                    AnonFun expr = new AnonFun(tokens(), statements());
+                    expr.frameSize = readInt(in);
+                    expr.boxedParams = ints();
+                    expr.captureDepths = ints();
+                    expr.captureSlots = ints();
+                    return expr;
+                }
+                case ASSIGN: {
+                    Assign expr = new Assign(token(), expr());
+                    expr.depth = readInt(in);
+                    expr.slot = readInt(in);
+                    return expr;
+                }
+                case INLINE: {
+                    Inline expr = new Inline((Call)expr(), expr());
+                    expr.slots = ints();
+                    return expr;
+                }
+            }
+            throw new IllegalStateException("Bad expression tag " + tag + ".");
+        }
+
+        private Stmt stmt() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch(tag) {
+                case 0: return null;
+                case BLOCK: {
+                    Block stmt = new Block(statements());
+                    stmt.frameSize = readInt(in);
+                    return stmt;
+                }
+                case CLASS: {
+                    Token name = token();
+                    Variable superClass = (Variable)expr();
+                    List<Function> methods = new ArrayList<>();
+                    for(Stmt method : statements()) {
+                        methods.add((Function)method);
+                    }
+                    Class stmt = new Class(name, superClass, methods);
+                    stmt.slot = readInt(in);
+                    stmt.boxed = in.readBoolean();
+                    return stmt;
+                }
+                case EXPRESSION: return new Expression(expr());
+                case FUNCTION: {
+                    Function stmt = new Function(token(), tokens(), statements());
+                    stmt.slot = readInt(in);
+                    stmt.boxed = in.readBoolean();
+                    stmt.frameSize = readInt(in);
+                    stmt.boxedParams = ints();
+                    stmt.captureDepths = ints();
+                    stmt.captureSlots = ints();
+                    return stmt;
+                }
+                case PRINT: return new Print(expr());
+                case VAR: {
+                    Var stmt = new Var(token(), expr());
+                    stmt.slot = readInt(in);
+                    stmt.boxed = in.readBoolean();
+                    return stmt;
+                }
+                case RETURN: {
+                    Return stmt = new Return(token(), expr());
+                    stmt.tailCall = in.readBoolean();
+                    return stmt;
+                }
+                case IF: return new If(expr(), stmt(), stmt());
+                case WHILE: return new While(expr(), stmt());
+                case FOR: {
+                    For stmt = new For(stmt(), expr(), expr(), stmt());
+                    stmt.frameSize = readInt(in);
+                    return stmt;
+                }
+                case BREAK: return new Break(token());
+                case IMPORT: return new Import(token(), string());
+            }
+            throw new IllegalStateException("Bad statement tag " + tag + ".");
+        }
+    }
+}
@@ -10,6 +10,8 @@ import com.craftinginterpreters.lox.Expr.Logical;
 import com.craftinginterpreters.lox.Expr.Call;
 import com.craftinginterpreters.lox.Expr.AnonFun;
 import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
 import com.craftinginterpreters.lox.Expr.Set;
 import com.craftinginterpreters.lox.Expr.This;
 import com.craftinginterpreters.lox.Expr.Super;
@@ -83,6 +85,17 @@ public class AstPrinter implements Expr.Visitor<String> {
         throw new UnsupportedOperationException("Unimplemented method 'visitAnonFunExpr'");
     }
 
+    @Override
+    public String visitInvokeExpr(Invoke expr) {
+        // TODO Auto-generated method stub
+        throw new UnsupportedOperationException("Unimplemented method 'visitInvokeExpr'");
+    }
+
+    @Override
+    public String visitInlineExpr(Inline expr) {
+        return this.parenthesize("inline", expr.body);
+    }
+
     @Override
     public String visitGetExpr(Get expr) {
         // TODO Auto-generated method stub
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+
+// A shared, mutable box for a local that is captured by a closure and assigned after its
+// declaration - the declaring frame and all the capturing closures hold the same cell.
+// Cells never escape as Lox values: a frame slot or capture holding one is read through it.
+class Cell implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A compiled function body: the instruction bytes, the source line of each
+// byte (for runtime errors) and the constant pool.
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    Object[] constants = new Object[16];
+    int constantCount = 0;
+
+    // Names and literals are pooled once per chunk; functions are always distinct.
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+        if(count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte)b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        if(!(value instanceof VmFunction)) {
+            Integer index = constantIndex.get(value);
+            if(index != null) return index;
+        }
+
+        if(constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+
+        if(!(value instanceof VmFunction)) {
+            constantIndex.put(value, constantCount);
+        }
+        return constantCount++;
+    }
+}
@@ -0,0 +1,348 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A minimal JVM class file writer for the JIT - just enough for one final class implementing
+// an interface, with an Object[] constants field, a constructor storing it and one method
+// whose code is emitted here. The class file version predates stack map frames, so the
+// verifier infers the types at branch targets itself and labels need no frame bookkeeping.
+class ClassFile {
+    private static final int VERSION = 49;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // Opcodes in use.
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    // A branch target - the jumps to it are patched once it is marked.
+    static class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private final String name;
+    private final String interfaceName;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndexes = new HashMap<>();
+    private int poolCount = 1;
+
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+
+    ClassFile(String name, String interfaceName) {
+        this.name = name;
+        this.interfaceName = interfaceName;
+    }
+
+    // Code emitting - stackEffect is the change in operand stack slots (doubles take two).
+    void op(int opcode, int stackEffect) {
+        u1(opcode);
+        adjustStack(stackEffect);
+    }
+
+    void local(int opcode, int index) {
+        if(index > 255) throw new IllegalStateException("Too many locals.");
+        u1(opcode);
+        u1(index);
+        adjustStack(opcode == ALOAD ? 1 : -1);
+    }
+
+    void pushInt(int value) {
+        if(value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            u1(value);
+        } else {
+            op(SIPUSH, 1);
+            u2(value);
+        }
+    }
+
+    void pushDouble(double value) {
+        op(LDC2_W, 2);
+        u2(constant("D:" + Double.doubleToRawLongBits(value), CONSTANT_DOUBLE, value));
+    }
+
+    void invokeStatic(String owner, String method, String descriptor) {
+        op(INVOKESTATIC, -argumentSlots(descriptor) + returnSlots(descriptor));
+        u2(memberRef(CONSTANT_METHODREF, owner, method, descriptor));
+    }
+
+    void invokeInterface(String owner, String method, String descriptor) {
+        int arguments = argumentSlots(descriptor) + 1;
+        op(INVOKEINTERFACE, -arguments + returnSlots(descriptor));
+        u2(memberRef(CONSTANT_INTERFACE_METHODREF, owner, method, descriptor));
+        u1(arguments);
+        u1(0);
+    }
+
+    // The generated class's own constants field.
+    void getConstants() {
+        op(GETFIELD, 0);
+        u2(memberRef(CONSTANT_FIELDREF, name, "constants", "[Ljava/lang/Object;"));
+    }
+
+    void typeOp(int opcode, String className) {
+        op(opcode, 0);
+        u2(classRef(className));
+    }
+
+    void jump(int opcode, Label target) {
+        int at = length;
+        int effect = opcode == GOTO ? 0 : -1;
+        op(opcode, effect);
+        u2(0);
+        target.stack = stack;
+        if(target.position >= 0) {
+            patch(at, target.position);
+        } else {
+            target.jumps.add(at);
+        }
+    }
+
+    void mark(Label label) {
+        label.position = length;
+        // code after an unconditional jump continues with the stack the jumps arrive with.
+        if(label.stack >= 0) stack = label.stack;
+        for(int at : label.jumps) {
+            patch(at, length);
+        }
+        label.jumps.clear();
+    }
+
+    byte[] toBytes(String methodName, String descriptor, int maxLocals) throws IOException {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int implemented = classRef(interfaceName);
+        int constantsName = utf8("constants");
+        int constantsType = utf8("[Ljava/lang/Object;");
+        int constantsField = memberRef(CONSTANT_FIELDREF, name, "constants", "[Ljava/lang/Object;");
+        int objectInit = memberRef(CONSTANT_METHODREF, "java/lang/Object", "<init>", "()V");
+        int initName = utf8("<init>");
+        int initType = utf8("([Ljava/lang/Object;)V");
+        int methodNameIndex = utf8(methodName);
+        int methodType = utf8(descriptor);
+        int codeName = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(VERSION);
+        out.writeShort(poolCount);
+        poolOut.flush();
+        pool.writeTo(out);
+
+        out.writeShort(ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(implemented);
+
+        out.writeShort(1);
+        out.writeShort(ACC_PRIVATE | ACC_FINAL);
+        out.writeShort(constantsName);
+        out.writeShort(constantsType);
+        out.writeShort(0);
+
+        out.writeShort(2);
+
+        // constructor: this.constants = constants
+        byte[] init = {
+            0x2a,                                        // aload_0
+            (byte)INVOKESPECIAL, (byte)(objectInit >> 8), (byte)objectInit,
+            0x2a,                                        // aload_0
+            0x2b,                                        // aload_1
+            (byte)PUTFIELD, (byte)(constantsField >> 8), (byte)constantsField,
+            (byte)RETURN
+        };
+        writeMethod(out, ACC_PUBLIC, initName, initType, codeName, init, init.length, 2, 2);
+        writeMethod(out, ACC_PUBLIC, methodNameIndex, methodType, codeName, code, length, maxStack, maxLocals);
+
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void writeMethod(DataOutputStream out, int access, int name, int type, int codeName,
+                             byte[] code, int length, int maxStack, int maxLocals) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private void patch(int at, int target) {
+        int offset = target - at;
+        if(offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new IllegalStateException("Too much code to jump over.");
+        }
+        code[at + 1] = (byte)(offset >> 8);
+        code[at + 2] = (byte)offset;
+    }
+
+    private void adjustStack(int effect) {
+        stack += effect;
+        if(stack > maxStack) maxStack = stack;
+    }
+
+    private void u1(int b) {
+        if(length == code.length) {
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = (byte)b;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    // Constant pool - entries are shared by key.
+
+    private int utf8(String text) {
+        return constant("U:" + text, CONSTANT_UTF8, text);
+    }
+
+    private int classRef(String className) {
+        return constant("C:" + className, CONSTANT_CLASS, className);
+    }
+
+    private int memberRef(int tag, String owner, String member, String descriptor) {
+        return constant(tag + ":" + owner + "." + member + ":" + descriptor, tag,
+                        new String[] { owner, member, descriptor });
+    }
+
+    private int constant(String key, int tag, Object value) {
+        Integer index = poolIndexes.get(key);
+        if(index != null) return index;
+
+        try {
+            // entries referring to others get those added first.
+            int[] refs = null;
+            if(tag == CONSTANT_CLASS) {
+                refs = new int[] { utf8((String)value) };
+            } else if(tag == CONSTANT_NAME_AND_TYPE) {
+                String[] parts = (String[])value;
+                refs = new int[] { utf8(parts[0]), utf8(parts[1]) };
+            } else if(tag == CONSTANT_FIELDREF || tag == CONSTANT_METHODREF
+                      || tag == CONSTANT_INTERFACE_METHODREF) {
+                String[] parts = (String[])value;
+                refs = new int[] {
+                    classRef(parts[0]),
+                    constant("N:" + parts[1] + ":" + parts[2], CONSTANT_NAME_AND_TYPE,
+                             new String[] { parts[1], parts[2] })
+                };
+            }
+
+            poolOut.writeByte(tag);
+            if(tag == CONSTANT_UTF8) {
+                poolOut.writeUTF((String)value);
+            } else if(tag == CONSTANT_DOUBLE) {
+                poolOut.writeDouble((Double)value);
+            } else {
+                for(int ref : refs) {
+                    poolOut.writeShort(ref);
+                }
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        index = poolCount;
+        // doubles take two entries.
+        poolCount += tag == CONSTANT_DOUBLE ? 2 : 1;
+        if(poolCount > 0xffff) throw new IllegalStateException("Too many constants.");
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    // Stack slots taken by a method descriptor's arguments and return value.
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while(descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            slots += (c == 'D' || c == 'J') ? 2 : 1;
+            while(descriptor.charAt(i) == '[') i++;
+            if(descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            i++;
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if(c == 'V') return 0;
+        return (c == 'D' || c == 'J') ? 2 : 1;
+    }
+}
@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// A function body the JIT compiled to JVM bytecode (see JitCompiler) - it takes the place of
+// the tree-walk of the body once the function is hot.
+interface CompiledFunction {
+    // receiver is the instance a method is bound to, null for plain functions.
+    Object call(Interpreter interpreter, LoxInstance receiver, List<Object> arguments);
+}
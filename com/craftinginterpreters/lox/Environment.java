@@ -5,56 +5,102 @@ import java.util.Map;
 
 class Environment {
 
-    private final Map<String, Object> values = new HashMap<>();
+    // Named bindings - only the global scope uses these, locals are resolved to slots.
+    private final Map<String, Object> values;
+
+    // Resolved local bindings, indexed by the slot the resolver assigned to them.
+    private final Object[] slots;
+
+    // Slots whose value is a raw double hold NUMBER, the double itself is in numbers - so
+    // numeric code can update a local without boxing it. Allocated on the first such store.
+    private static final Object NUMBER = new Object();
+    private double[] numbers;
 
     private final Environment enclosing;
 
     Environment() {
-        enclosing = null;
+        this.values = new HashMap<>();
+        this.slots = null;
+        this.enclosing = null;
+    }
+
+    // A global scope over the bindings of a host (see LoxScriptEngine).
+    Environment(Map<String, Object> values) {
+        this.values = values;
+        this.slots = null;
+        this.enclosing = null;
     }
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
+        this.values = null;
+        this.slots = new Object[size];
         this.enclosing = enclosing;
     }
-    
+
+    // The named bindings - the globals a snapshot keeps.
+    Map<String, Object> bindings() {
+        return values;
+    }
+
     void define(String name, Object value) {
         values.put(name, value);
     }
 
+    void define(int slot, Object value) {
+        slots[slot] = value;
+    }
+
     Object get(Token name) {
         if(values.containsKey(name.lexeme)) {
             return values.get(name.lexeme);
         }
-        if(this.enclosing != null) {
-            return this.enclosing.get(name);
-        }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        Environment environment = ancestor(distance);
+        Object value = environment.slots[slot];
+        // a raw double is boxed as it leaves the frame.
+        if(value == NUMBER) return environment.numbers[slot];
+        return value;
+    }
+
+    boolean holdsCell(int slot) {
+        return slots[slot] instanceof Cell;
+    }
+
+    boolean holdsNumber(int slot) {
+        return slots[slot] == NUMBER;
+    }
+
+    double numberAt(int slot) {
+        return numbers[slot];
+    }
+
+    void assignNumber(int slot, double value) {
+        if(numbers == null) {
+            numbers = new double[slots.length];
+        }
+        numbers[slot] = value;
+        slots[slot] = NUMBER;
     }
 
     Environment getEnclosing() {
         return this.enclosing;
     }
-    
+
     void assign(Token name, Object value) {
         if(values.containsKey(name.lexeme)) {
             values.put(name.lexeme, value);
             return;
         }
-        if(this.enclosing != null) {
-            this.enclosing.assign(name, value);
-            return;
-        }
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
-        
+
     Environment ancestor(int distance) {
         Environment environment = this;
         for(int i = 0; i < distance; i++) {
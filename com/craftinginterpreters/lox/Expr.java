@@ -1,11 +1,15 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-abstract class Expr {
+abstract class Expr implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     interface Visitor<R> {
         R visitBinaryExpr(Binary expr);
         R visitCallExpr(Call expr);
+        R visitInvokeExpr(Invoke expr);
         R visitGetExpr(Get expr);
         R visitSetExpr(Set expr);
         R visitThisExpr(This expr);
@@ -17,9 +21,12 @@ abstract class Expr {
         R visitVariableExpr(Variable expr);
         R visitAnonFunExpr(AnonFun expr);
         R visitAssignExpr(Assign expr);
+        R visitInlineExpr(Inline expr);
         }
 
     static class Binary extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
@@ -35,9 +42,12 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        int specialization;
     }
 
     static class Call extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Call(Expr callee, Token paren, List<Expr> arguments) {
             this.callee = callee;
             this.paren = paren;
@@ -55,7 +65,32 @@ abstract class Expr {
         final List<Expr> arguments;
     }
 
+    static class Invoke extends Expr {
+        private static final long serialVersionUID = 1L;
+
+        Invoke(Expr object, Token name, Token paren, List<Expr> arguments) {
+            this.object = object;
+            this.name = name;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+
+       @Override
+       <R> R accept(Visitor<R> visitor) {
+           return visitor.visitInvokeExpr(this);
+        }
+
+        final Expr object;
+        final Token name;
+        final Token paren;
+        final List<Expr> arguments;
+        InlineCache cache = new InlineCache();
+    }
+
     static class Get extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Get(Expr object, Token name) {
             this.object = object;
             this.name = name;
@@ -69,9 +104,12 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+        InlineCache cache = new InlineCache();
     }
 
     static class Set extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Set(Expr object, Token name, Expr value) {
             this.object = object;
             this.name = name;
@@ -87,9 +125,12 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        InlineCache cache = new InlineCache();
     }
 
     static class This extends Expr {
+        private static final long serialVersionUID = 1L;
+
         This(Token keyword) {
             this.keyword = keyword;
         }
@@ -101,9 +142,13 @@ abstract class Expr {
         }
 
         final Token keyword;
+        int depth = -1;
+        int slot = -1;
     }
 
     static class Super extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
@@ -117,9 +162,15 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        int depth = -1;
+        int slot = -1;
+        int thisDepth = -1;
+        int thisSlot = -1;
     }
 
     static class Grouping extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Grouping(Expr expression) {
             this.expression = expression;
         }
@@ -134,6 +185,8 @@ abstract class Expr {
     }
 
     static class Literal extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Literal(Object value) {
             this.value = value;
         }
@@ -148,6 +201,8 @@ abstract class Expr {
     }
 
     static class Logical extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Logical(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
@@ -166,6 +221,8 @@ abstract class Expr {
     }
 
     static class Unary extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Unary(Token operator, Expr right) {
             this.operator = operator;
             this.right = right;
@@ -182,6 +239,8 @@ abstract class Expr {
     }
 
     static class Variable extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Variable(Token name) {
             this.name = name;
         }
@@ -193,9 +252,13 @@ abstract class Expr {
         }
 
         final Token name;
+        int depth = -1;
+        int slot = -1;
     }
 
     static class AnonFun extends Expr {
+        private static final long serialVersionUID = 1L;
+
         AnonFun(List<Token> params, List<Stmt> body) {
             this.params = params;
             this.body = body;
@@ -209,9 +272,15 @@ abstract class Expr {
 
         final List<Token> params;
         final List<Stmt> body;
+        int frameSize;
+        int[] boxedParams;
+        int[] captureDepths;
+        int[] captureSlots;
     }
 
     static class Assign extends Expr {
+        private static final long serialVersionUID = 1L;
+
         Assign(Token name, Expr value) {
             this.name = name;
             this.value = value;
@@ -225,6 +294,27 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot = -1;
+    }
+
+    static class Inline extends Expr {
+        private static final long serialVersionUID = 1L;
+
+        Inline(Call call, Expr body) {
+            this.call = call;
+            this.body = body;
+        }
+
+
+       @Override
+       <R> R accept(Visitor<R> visitor) {
+           return visitor.visitInlineExpr(this);
+        }
+
+        final Call call;
+        final Expr body;
+        int[] slots;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -1,12 +1,30 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Globals {
 
     public static void defineNativeFunctions(Environment environment) {
+	for(Map.Entry<String, LoxCallable> entry : nativeFunctions().entrySet()) {
+	    environment.define(entry.getKey(), entry.getValue());
+	}
+    }
+
+    // Natives are shared by both backends, so they must not depend on the interpreter argument.
+    // There is one instance of each, so a snapshot can refer to a native by its name.
+    private static final Map<String, LoxCallable> NATIVES = createNativeFunctions();
+
+    static Map<String, LoxCallable> nativeFunctions() {
+	return NATIVES;
+    }
+
+    private static Map<String, LoxCallable> createNativeFunctions() {
+	Map<String, LoxCallable> natives = new LinkedHashMap<>();
 
-	environment.define("clock", new LoxCallable() {
+	natives.put("clock", new LoxCallable() {
 		@Override
 		public int arity() {
 		    return 0;
@@ -25,7 +43,7 @@ public class Globals {
 	    });
 
 	// template body to define new global native methods.
-	environment.define("_func_name_", new LoxCallable() {
+	natives.put("_func_name_", new LoxCallable() {
 		@Override
 		public int arity() {
 		    throw new UnsupportedOperationException("Unimplemented");
@@ -42,6 +60,8 @@ public class Globals {
 		    return "<native fn>";
 		}
 	    });
+
+	return Collections.unmodifiableMap(natives);
     }
 }
 
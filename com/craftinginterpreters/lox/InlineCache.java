@@ -0,0 +1,46 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// A property access site's memory of where the property was found for the receiver shapes
+// it has seen - monomorphic with one entry, polymorphic up to ENTRIES, then megamorphic:
+// the site stops caching and always takes the full lookup.
+//
+// The site belongs to the tree of a program, which threads may run at the same time (see
+// Program), so the entries are an array that is replaced, never updated: a lookup sees a
+// complete one, and an entry two threads add at once is only lost.
+class InlineCache implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int ENTRIES = 4;
+    private static final Object[] EMPTY = new Object[0];
+
+    // keys and values, alternating.
+    private volatile Object[] entries = EMPTY;
+    private volatile boolean megamorphic = false;
+
+    // The cached value for key, null on a miss.
+    Object lookup(Object key) {
+        Object[] entries = this.entries;
+        for(int i = 0; i < entries.length; i += 2) {
+            if(entries[i] == key) return entries[i + 1];
+        }
+        return null;
+    }
+
+    void add(Object key, Object value) {
+        if(megamorphic) return;
+        Object[] entries = this.entries;
+        if(entries.length == ENTRIES * 2) {
+            // lookups find nothing from here on.
+            megamorphic = true;
+            this.entries = EMPTY;
+            return;
+        }
+        Object[] added = Arrays.copyOf(entries, entries.length + 2);
+        added[entries.length] = key;
+        added[entries.length + 1] = value;
+        this.entries = added;
+    }
+}
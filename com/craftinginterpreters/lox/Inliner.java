@@ -0,0 +1,229 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.craftinginterpreters.lox.Expr.AnonFun;
+import com.craftinginterpreters.lox.Expr.Assign;
+import com.craftinginterpreters.lox.Expr.Binary;
+import com.craftinginterpreters.lox.Expr.Call;
+import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Grouping;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
+import com.craftinginterpreters.lox.Expr.Literal;
+import com.craftinginterpreters.lox.Expr.Logical;
+import com.craftinginterpreters.lox.Expr.Super;
+import com.craftinginterpreters.lox.Expr.This;
+import com.craftinginterpreters.lox.Expr.Unary;
+import com.craftinginterpreters.lox.Expr.Variable;
+import com.craftinginterpreters.lox.Stmt.Function;
+import com.craftinginterpreters.lox.Stmt.Return;
+
+// Inlines calls of small top-level functions, for the Optimizer. A function qualifies when
+// it is declared once at the top level, its name is never assigned, and its body is a single
+// return of an expression of at most MAX_SIZE nodes that does not mention the function itself
+// or create a closure. Only the calls after the declaration are inlined, as they always run
+// after it - and so always call that function.
+//
+// The inlined expression is a copy of the returned one, with the parameters moved to slots the
+// optimizer adds to the call site's frame. The call stores its arguments there and evaluates
+// the copy - no arguments list, frame or LoxFunction call.
+class Inliner implements Expr.Visitor<Expr> {
+
+    static final int MAX_SIZE = 24;
+
+    // Lists the inlined calls on stderr (--inline-report).
+    static boolean report = false;
+
+    private final Set<String> assignedGlobals;
+    private final Map<String, Integer> declarations = new HashMap<>();
+    private final Map<String, Function> functions = new HashMap<>();
+
+    // state of the copy being made.
+    private String name;
+    private int base;
+    private int size;
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    Inliner(List<Stmt> statements, Set<String> assignedGlobals) {
+        this.assignedGlobals = assignedGlobals;
+        // a top-level name declared twice is rebound.
+        for(Stmt statement : statements) {
+            Token declared = null;
+            if(statement instanceof Function) declared = ((Function)statement).name;
+            if(statement instanceof Stmt.Var) declared = ((Stmt.Var)statement).name;
+            if(statement instanceof Stmt.Class) declared = ((Stmt.Class)statement).name;
+            if(declared != null) declarations.merge(declared.lexeme, 1, Integer::sum);
+            // so do the globals of an imported module.
+            if(statement instanceof Stmt.Import) {
+                for(String name : ((Stmt.Import)statement).module.declaredGlobals) {
+                    declarations.merge(name, 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    // Called with each top-level function once it is optimized - calls from here on may inline it.
+    void declare(Function function) {
+        String name = function.name.lexeme;
+        if(declarations.get(name) != 1 || assignedGlobals.contains(name)) return;
+        if(function.captureSlots.length != 0 || function.body.size() != 1) return;
+        if(!(function.body.get(0) instanceof Return)) return;
+
+        Expr value = ((Return)function.body.get(0)).value;
+        if(value == null) return;
+        try {
+            copy(function, value, 0);
+        } catch(Unsupported unsupported) {
+            return;
+        }
+        functions.put(name, function);
+    }
+
+    // The function a call can inline, null when there is none.
+    Function inlinable(Call call) {
+        if(!(call.callee instanceof Variable)) return null;
+        Variable callee = (Variable)call.callee;
+        if(callee.depth != Resolver.GLOBAL) return null;
+
+        Function function = functions.get(callee.name.lexeme);
+        if(function == null || function.params.size() != call.arguments.size()) return null;
+        return function;
+    }
+
+    // The inlined call - its parameters are in the call site's frame from slot base on.
+    Inline inline(Function function, Call call, int base) {
+        Expr body = copy(function, ((Return)function.body.get(0)).value, base);
+
+        Inline inline = new Inline(call, body);
+        inline.slots = new int[function.params.size()];
+        for(int i = 0; i < inline.slots.length; i++) {
+            inline.slots[i] = base + i;
+        }
+
+        if(report) {
+            System.err.println("[line " + call.paren.line + "] Inlined '" + function.name.lexeme
+                               + "' (" + size + " nodes).");
+        }
+        return inline;
+    }
+
+    private Expr copy(Function function, Expr expr, int base) {
+        this.name = function.name.lexeme;
+        this.base = base;
+        this.size = 0;
+        return copy(expr);
+    }
+
+    private Expr copy(Expr expr) {
+        if(++size > MAX_SIZE) throw new Unsupported();
+        return expr.accept(this);
+    }
+
+    private List<Expr> copyAll(List<Expr> exprs) {
+        List<Expr> copies = new ArrayList<>();
+        for(Expr expr : exprs) {
+            copies.add(copy(expr));
+        }
+        return copies;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        return new Binary(copy(expr.left), expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        return new Call(copy(expr.callee), expr.paren, copyAll(expr.arguments));
+    }
+
+    @Override
+    public Expr visitInvokeExpr(Invoke expr) {
+        return new Invoke(copy(expr.object), expr.name, expr.paren, copyAll(expr.arguments));
+    }
+
+    @Override
+    public Expr visitGetExpr(Get expr) {
+        return new Get(copy(expr.object), expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        return new Expr.Set(copy(expr.object), expr.name, copy(expr.value));
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Grouping expr) {
+        return new Grouping(copy(expr.expression));
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        return new Logical(copy(expr.left), expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Unary expr) {
+        return new Unary(expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Variable expr) {
+        // the function would be recursive.
+        if(expr.name.lexeme.equals(name)) throw new Unsupported();
+
+        Variable variable = new Variable(expr.name);
+        variable.depth = expr.depth;
+        variable.slot = expr.slot;
+        // a parameter - the only locals of the function's frame.
+        if(expr.depth == 0) variable.slot = base + expr.slot;
+        return variable;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        if(expr.name.lexeme.equals(name)) throw new Unsupported();
+
+        Assign assign = new Assign(expr.name, copy(expr.value));
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        if(expr.depth == 0) assign.slot = base + expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitThisExpr(This expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Expr visitSuperExpr(Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Expr visitAnonFunExpr(AnonFun expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Expr visitInlineExpr(Inline expr) {
+        // its slots are in the function's own frame.
+        throw new Unsupported();
+    }
+}
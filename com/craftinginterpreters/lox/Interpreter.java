@@ -10,45 +10,94 @@ import com.craftinginterpreters.lox.Expr.Logical;
 import com.craftinginterpreters.lox.Expr.Call;
 import com.craftinginterpreters.lox.Expr.AnonFun;
 import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
 import com.craftinginterpreters.lox.Expr.Set;
 import com.craftinginterpreters.lox.Expr.This;
 import com.craftinginterpreters.lox.Expr.Super;
 import com.craftinginterpreters.lox.Stmt.Block;
 import com.craftinginterpreters.lox.Stmt.Expression;
+import com.craftinginterpreters.lox.Stmt.For;
 import com.craftinginterpreters.lox.Stmt.Print;
 import com.craftinginterpreters.lox.Stmt.Var;
 import com.craftinginterpreters.lox.Stmt.If;
 import com.craftinginterpreters.lox.Stmt.While;
 import com.craftinginterpreters.lox.Stmt.Break;
+import com.craftinginterpreters.lox.Stmt.Import;
 import com.craftinginterpreters.lox.Stmt.Function;
 import com.craftinginterpreters.lox.Stmt.Class;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
 
-    private static class LoopExitJump extends RuntimeException {}
+    // How a statement finished - a break or a return is passed up as the result of executing
+    // it until the enclosing loop or function body acts on it. A return leaves its value in
+    // returnValue.
+    enum Completion {
+        NORMAL,
+        BREAK,
+        RETURN
+    }
+
+    // Thrown by the unboxed numeric path when a value turns out not to be a number - it
+    // carries the value computed the generic way. Each throw deoptimizes a node for good.
+    private static class UnexpectedValue extends RuntimeException {
+        final Object value;
+
+        UnexpectedValue(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final Environment globals;
+    private Environment environment;
+    // captured variables of the running function (none at the top level).
+    private Object[] captures = null;
 
-    // TODO - it looks ugly.
-    private int loopDepth = 0;
+    private Object returnValue = null;
+
+    // the modules imported so far.
+    private final java.util.Set<Module> modules = new HashSet<>();
+
+    // A call in tail position is not made by the interpreter: it evaluates to TAIL_CALL, and the
+    // function called with its arguments is left for the caller's LoxFunction.invoke() to run.
+    static final Object TAIL_CALL = new Object();
+    private boolean tailPosition = false;
+    LoxFunction tailFunction;
+    LoxInstance tailReceiver;
+    List<Object> tailArguments;
+
+    // where print writes - a script engine points it at the writer of each evaluation.
+    PrintWriter out;
 
     public Interpreter() {
+        this(new PrintWriter(System.out, true));
+    }
+
+    Interpreter(PrintWriter out) {
+        this(out, new Environment());
+    }
+
+    Interpreter(PrintWriter out, Environment globals) {
+        this.out = out;
+        this.globals = globals;
+        this.environment = globals;
         Globals.defineNativeFunctions(globals);
     }
     
     public void interpret(Expr expression) {
         try {
             Object value = this.evaluate(expression);
-            System.out.println(this.stringify(value));
+            out.println(stringify(value));
         } catch (RuntimeError error)    {
             Lox.runtimeError(error);
         }
@@ -56,59 +105,206 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     public void interpret(List<Stmt> statements) {
         try {
-            for(Stmt statement : statements) {
-                execute(statement);
-            }
+            run(statements);
         } catch (RuntimeError error)    {
             Lox.runtimeError(error);
         }
     }
 
-    // Method to set aside the scope (outer) depth to its environment (where it is bound).
-    public void resolve(Expr varExpr, int depth) {
-        locals.put(varExpr, depth);
+    // Runs top-level statements, leaving a runtime error to the caller.
+    void run(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            execute(statement);
+        }
     }
 
+    // Specializations a Binary node rewrites itself to from the operand types it sees - a
+    // specialized node only guards its types, a guard miss turns it generic for good.
+    private static final int UNSPECIALIZED = 0;
+    private static final int GENERIC = 1;
+    private static final int NUMBER_ADD = 2;
+    private static final int NUMBER_SUBTRACT = 3;
+    private static final int NUMBER_MULTIPLY = 4;
+    private static final int NUMBER_DIVIDE = 5;
+    private static final int NUMBER_GREATER = 6;
+    private static final int NUMBER_GREATER_EQUAL = 7;
+    private static final int NUMBER_LESS = 8;
+    private static final int NUMBER_LESS_EQUAL = 9;
+    private static final int STRING_CONCAT = 10;
+
     @Override
     public Object visitBinaryExpr(Binary expr) {
+        // read once, before the operands: evaluating them may deoptimize the node (a call
+        // back into the same function), the operation is still the one of this evaluation.
+        int specialization = expr.specialization;
+        switch(specialization) {
+            case NUMBER_ADD:
+            case NUMBER_SUBTRACT:
+            case NUMBER_MULTIPLY:
+            case NUMBER_DIVIDE:
+                // the operands stay unboxed, only the result is boxed.
+                try {
+                    return arithmetic(expr, specialization);
+                } catch(UnexpectedValue unexpected) {
+                    return unexpected.value;
+                }
+            case NUMBER_GREATER:
+            case NUMBER_GREATER_EQUAL:
+            case NUMBER_LESS:
+            case NUMBER_LESS_EQUAL:
+                try {
+                    return comparison(expr, specialization);
+                } catch(UnexpectedValue unexpected) {
+                    return unexpected.value;
+                }
+        }
+
         Object left = this.evaluate(expr.left);
         Object right = this.evaluate(expr.right);
 
-        switch(expr.operator.type) {
+        switch(specialization) {
+            case STRING_CONCAT:
+                if(Rope.isString(left) && Rope.isString(right)) return Rope.concat(left, right);
+                break;
+            case GENERIC:
+                return binary(expr.operator, left, right);
+        }
+
+        return specialize(expr, left, right);
+    }
+
+    // Evaluates an expression expected to give a number, without boxing it - an arithmetic
+    // node computes from its operands' doubles and a local may hold a raw double. A value
+    // that is not a number is thrown back in an UnexpectedValue.
+    private double evaluateNumber(Expr expr) {
+        if(expr instanceof Binary) {
+            int specialization = ((Binary)expr).specialization;
+            if(isArithmetic(specialization)) return arithmetic((Binary)expr, specialization);
+        }
+        if(expr instanceof Variable && ((Variable)expr).depth >= 0) {
+            Variable variable = (Variable)expr;
+            Environment frame = environment.ancestor(variable.depth);
+            if(frame.holdsNumber(variable.slot)) return frame.numberAt(variable.slot);
+        }
+
+        Object value = evaluate(expr);
+        if(value instanceof Double) return (double)value;
+        throw new UnexpectedValue(value);
+    }
+
+    private static boolean isArithmetic(int specialization) {
+        return specialization >= NUMBER_ADD && specialization <= NUMBER_DIVIDE;
+    }
+
+    // The unboxed path of an arithmetic node of the given specialization, as the caller read
+    // it. An operand that is not a number deoptimizes the node, which then finishes
+    // generically and throws its value to the boxed caller.
+    private double arithmetic(Binary expr, int specialization) {
+        double left;
+        double right;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch(UnexpectedValue unexpected) {
+            throw new UnexpectedValue(specialize(expr, unexpected.value, evaluate(expr.right)));
+        }
+        try {
+            right = evaluateNumber(expr.right);
+        } catch(UnexpectedValue unexpected) {
+            throw new UnexpectedValue(specialize(expr, left, unexpected.value));
+        }
+
+        switch(specialization) {
+            case NUMBER_ADD: return left + right;
+            case NUMBER_SUBTRACT: return left - right;
+            case NUMBER_MULTIPLY: return left * right;
+            case NUMBER_DIVIDE:
+                if(right != 0) return left / right;
+                // reported by the generic path.
+                throw new UnexpectedValue(specialize(expr, left, right));
+            default:
+                throw new UnexpectedValue(binary(expr.operator, left, right));
+        }
+    }
+
+    private boolean comparison(Binary expr, int specialization) {
+        double left;
+        double right;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch(UnexpectedValue unexpected) {
+            throw new UnexpectedValue(specialize(expr, unexpected.value, evaluate(expr.right)));
+        }
+        try {
+            right = evaluateNumber(expr.right);
+        } catch(UnexpectedValue unexpected) {
+            throw new UnexpectedValue(specialize(expr, left, unexpected.value));
+        }
+
+        switch(specialization) {
+            case NUMBER_GREATER: return left > right;
+            case NUMBER_GREATER_EQUAL: return left >= right;
+            case NUMBER_LESS: return left < right;
+            case NUMBER_LESS_EQUAL: return left <= right;
+            default:
+                throw new UnexpectedValue(binary(expr.operator, left, right));
+        }
+    }
+
+    // Slow path - picks the node's specialization on its first evaluation and deoptimizes a
+    // specialized node whose guard failed, then evaluates generically.
+    private Object specialize(Binary expr, Object left, Object right) {
+        if(expr.specialization != UNSPECIALIZED) {
+            expr.specialization = GENERIC;
+        } else if(left instanceof Double && right instanceof Double) {
+            switch(expr.operator.type) {
+                case PLUS: expr.specialization = NUMBER_ADD; break;
+                case MINUS: expr.specialization = NUMBER_SUBTRACT; break;
+                case STAR: expr.specialization = NUMBER_MULTIPLY; break;
+                case SLASH: expr.specialization = NUMBER_DIVIDE; break;
+                case GREATER: expr.specialization = NUMBER_GREATER; break;
+                case GREATER_EQUAL: expr.specialization = NUMBER_GREATER_EQUAL; break;
+                case LESS: expr.specialization = NUMBER_LESS; break;
+                case LESS_EQUAL: expr.specialization = NUMBER_LESS_EQUAL; break;
+                default: expr.specialization = GENERIC;
+            }
+        } else if(Rope.isString(left) && Rope.isString(right) && expr.operator.type == PLUS) {
+            expr.specialization = STRING_CONCAT;
+        } else {
+            expr.specialization = GENERIC;
+        }
+        return binary(expr.operator, left, right);
+    }
+
+    private Object binary(Token operator, Object left, Object right) {
+        switch(operator.type) {
             case MINUS:
-                this.checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case SLASH:
-                this.checkNumberOperands(expr.operator, left, right);
-                this.checkNumberNotZero(expr.operator, (double)right);   
+                checkNumberOperands(operator, left, right);
+                checkNumberNotZero(operator, (double)right);   
                 return (double)left / (double)right;
             case STAR:
-                this.checkNumberOperands(expr.operator, left, right);   
+                checkNumberOperands(operator, left, right);   
                 return (double)left * (double)right;
             case PLUS:
-                if(left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-                if(left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
-                }
-                throw new RuntimeError(expr.operator, "Operands must two numbers or two strings.");
+                return add(operator, left, right);
             case GREATER:
-                this.checkNumberOperands(expr.operator, left, right);   
+                checkNumberOperands(operator, left, right);   
                 return (double)left > (double)right;
             case LESS:
-                this.checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case GREATER_EQUAL:
-                this.checkNumberOperands(expr.operator, left, right);   
+                checkNumberOperands(operator, left, right);   
                 return (double)left >= (double)right;
             case LESS_EQUAL:
-                this.checkNumberOperands(expr.operator, left, right);   
+                checkNumberOperands(operator, left, right);   
                 return (double)left <= (double)right;
             case EQUAL_EQUAL:
-                return this.isEqual(left, right);
+                return isEqual(left, right);
             case BANG_EQUAL:
-                return !this.isEqual(left, right);
+                return !isEqual(left, right);
         }
         
         return null;
@@ -131,7 +327,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             case MINUS:
                 return -(double)right;
             case BANG:
-                return !this.isTruthy(right);
+                return !isTruthy(right);
         }
 
         return null;
@@ -139,43 +335,83 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     // Statement 
     @Override
-    public Void visitExpressionStmt(Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    public Completion visitExpressionStmt(Expression stmt) {
+        evaluateForEffect(stmt.expression);
+        return Completion.NORMAL;
+    }
+
+    private void evaluateForEffect(Expr expr) {
+        // the value of an assignment is not used, a number can be stored unboxed.
+        if(expr instanceof Assign && assignNumber((Assign)expr)) return;
+        evaluate(expr);
     }
 
     @Override
-    public Void visitPrintStmt(Print stmt) {
+    public Completion visitPrintStmt(Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        out.println(stringify(value));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(While stmt) {
-        loopDepth++;
+    public Completion visitWhileStmt(While stmt) {
+        while(isTruthy(evaluate(stmt.condition))) {
+            Completion completion = execute(stmt.body);
+            if(completion == Completion.BREAK) break;
+            if(completion == Completion.RETURN) return completion;
+        }
+
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitForStmt(For stmt) {
+        // like a block's, the loop's scope has a frame of its own only at the top level.
+        if(stmt.frameSize == 0) return loop(stmt);
+
+        Environment previous = this.environment;
+        try {
+            this.environment = new Environment(environment, stmt.frameSize);
+            return loop(stmt);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    private Completion loop(For stmt) {
+        if(stmt.initializer != null) execute(stmt.initializer);
+
+        // a loop variable in a cell (closures capture it) is a new variable in every iteration,
+        // starting from the value the previous one ended with.
+        Var variable = null;
+        if(stmt.initializer instanceof Var && ((Var)stmt.initializer).boxed) {
+            variable = (Var)stmt.initializer;
+        }
 
         while(isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            } catch(LoopExitJump lej) {
-                break;
+            Completion completion = execute(stmt.body);
+            if(completion == Completion.BREAK) break;
+            if(completion == Completion.RETURN) return completion;
+
+            if(variable != null) {
+                Cell cell = (Cell)environment.getAt(0, variable.slot);
+                environment.define(variable.slot, new Cell(cell.value));
             }
+            if(stmt.increment != null) evaluateForEffect(stmt.increment);
         }
 
-        loopDepth--;
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(If stmt) {
+    public Completion visitIfStmt(If stmt) {
         if(isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if(stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
@@ -193,26 +429,44 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitAnonFunExpr(AnonFun expr) {
-        return  new LoxFunction(expr, environment);
+        Object[] captured = new Object[expr.captureSlots.length];
+        capture(captured, expr.captureDepths, expr.captureSlots, environment);
+        return new LoxFunction(expr, captured);
     }
 
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    private boolean isTruthy(Object object) {
+    // The semantics the JIT-compiled code (see JitRuntime) and the vm share. The vm has no
+    // operator token: it passes null and puts the line of the instruction on the error.
+
+    static Object add(Token operator, Object left, Object right) {
+        if(left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if(Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right);
+        }
+        throw new RuntimeError(operator, "Operands must two numbers or two strings.");
+    }
+
+    static boolean isTruthy(Object object) {
         if( object == null) return false;
         if( object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if(a == null && b == null) return true;
         if(a == null) return false;
+        // a rope is equal to the String of its text.
+        if(a instanceof Rope) a = a.toString();
+        if(b instanceof Rope) b = b.toString();
         return a.equals(b);
     }
 
@@ -221,19 +475,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if(left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private void checkNumberNotZero(Token operator, double value) {
+    static void checkNumberNotZero(Token operator, double value) {
         if(value == 0) throw new RuntimeError(operator, "Division by zero error.");
     }
     
     /* (non-Javadoc)
      * @see com.craftinginterpreters.lox.Expr.Visitor#visitBinaryExpr(com.craftinginterpreters.lox.Expr.Binary)
      */
-    private String stringify(Object value) {
+    static String stringify(Object value) {
         if(value == null) return "nil";
 
         if(value instanceof Double) {
@@ -248,14 +502,24 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitVarStmt(Var stmt) {
+    public Completion visitVarStmt(Var stmt) {
+        if(stmt.boxed) {
+            // the cell comes first - closures in the initializer may capture the variable.
+            Cell cell = new Cell(null);
+            environment.define(stmt.slot, cell);
+            if(stmt.initializer != null) {
+                cell.value = evaluate(stmt.initializer);
+            }
+            return Completion.NORMAL;
+        }
+
         Object value = null;
         if(stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.slot, stmt.name, value);
+        return Completion.NORMAL;
     }
 
     @Override
@@ -263,15 +527,22 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         // This node is a variable's usages point - we need to lookup it in this bound environment.
         // The bound environment is resolved and set aside as the outer scope skip length in the
         // previous semantic analysis (resolver) pass. 
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitAssignExpr(Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if(distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if(expr.depth >= 0) {
+            Object current = environment.getAt(expr.depth, expr.slot);
+            if(current instanceof Cell) {
+                ((Cell)current).value = value;
+            } else {
+                environment.assignAt(expr.depth, expr.slot, value);
+            }
+        } else if(expr.depth == Resolver.CAPTURED) {
+            // an assigned capture is always boxed.
+            ((Cell)captures[expr.slot]).value = value;
         } else {
             // If the variable is not bound in the local stack of scopes
             // put it in the global scope.
@@ -280,23 +551,53 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return value;
     }
 
+    // Stores the result of arithmetic straight into a local's slot as a raw double. False,
+    // with nothing evaluated, when the target or the value does not qualify.
+    private boolean assignNumber(Assign expr) {
+        if(expr.depth < 0 || !(expr.value instanceof Binary)) return false;
+        int specialization = ((Binary)expr.value).specialization;
+        if(!isArithmetic(specialization)) return false;
+        Environment frame = environment.ancestor(expr.depth);
+        if(frame.holdsCell(expr.slot)) return false;
+
+        try {
+            frame.assignNumber(expr.slot, arithmetic((Binary)expr.value, specialization));
+        } catch(UnexpectedValue unexpected) {
+            frame.define(expr.slot, unexpected.value);
+        }
+        return true;
+    }
+
     @Override
-    public Void visitBlockStmt(Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Block stmt) {
+        // a block without a frame of its own keeps its locals in the enclosing one.
+        if(stmt.frameSize == 0) return executeStatements(stmt.statements);
+        return executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
     }
 
     @Override
-    public Void visitBreakStmt(Break stmt) {
-        if(loopDepth == 0) {
-            throw new RuntimeError(stmt.token, "Encountered 'break' without enclosing loop.");
-        }
+    public Completion visitBreakStmt(Break stmt) {
+        // the resolver has checked that a loop of this function encloses it.
+        return Completion.BREAK;
+    }
 
-        throw new LoopExitJump();
+    @Override
+    public Completion visitImportStmt(Import stmt) {
+        // a module runs once - later imports find its globals defined.
+        if(modules.add(stmt.module)) {
+            for(Stmt statement : stmt.module.statements) {
+                execute(statement);
+            }
+        }
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitCallExpr(Call expr) {
+        // the callee and arguments are not in tail position themselves.
+        boolean tail = tailPosition;
+        tailPosition = false;
+
         Object callee = evaluate(expr.callee);
 
         List<Object> arguments = new ArrayList<>();
@@ -304,30 +605,94 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             arguments.add(evaluate(argument));
         }
 
+        if(tail && callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            checkArity(function, arguments, expr.paren);
+            return tailCall(function, function.receiver, arguments);
+        }
+        return call(callee, arguments, expr.paren);
+    }
+
+    @Override
+    public Object visitInvokeExpr(Invoke expr) {
+        boolean tail = tailPosition;
+        tailPosition = false;
+
+        Object object = evaluate(expr.object);
+
+        if(!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instances have properties.");
+        }
+
+        // The property is looked up before the arguments are evaluated, as a Get would be.
+        LoxInstance instance = (LoxInstance)object;
+        LoxFunction method = instance.method(expr.name, expr.cache);
+        Object callee = method != null ? method : instance.get(expr.name, expr.cache);
+
+        List<Object> arguments = new ArrayList<>();
+        for(Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+
+        if(method == null) {
+            // a field holding something callable.
+            return call(callee, arguments, expr.paren);
+        }
+
+        checkArity(method, arguments, expr.paren);
+        if(tail) return tailCall(method, instance, arguments);
+        // the instance goes straight into the method's frame - no bound method is made.
+        return method.invoke(this, instance, arguments);
+    }
+
+    @Override
+    public Object visitInlineExpr(Inline expr) {
+        // the arguments go to the slots the inlined function body reads its parameters from.
+        List<Expr> arguments = expr.call.arguments;
+        for(int i = 0; i < arguments.size(); i++) {
+            environment.define(expr.slots[i], evaluate(arguments.get(i)));
+        }
+        return evaluate(expr.body);
+    }
+
+    Object tailCall(LoxFunction function, LoxInstance receiver, List<Object> arguments) {
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailArguments = arguments;
+        return TAIL_CALL;
+    }
+
+    private Object call(Object callee, List<Object> arguments, Token paren) {
         if(!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only expr functions and classes.");
+            throw new RuntimeError(paren, "Can only expr functions and classes.");
         }
         
         LoxCallable function = (LoxCallable)callee;
+        checkArity(function, arguments, paren);
+        return function.call(this, arguments);
+    }
 
+    private void checkArity(LoxCallable function, List<Object> arguments, Token paren) {
         if(arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
                                    String.format("Expected %d arguments but got %d.",
                                                  function.arity(),
                                                  arguments.size()));
         }
-        return function.call(this, arguments);
     }
 
     @Override
-    public Void visitFunctionStmt(Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false /* non-init */);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Function stmt) {
+        Object[] captured = new Object[stmt.captureSlots.length];
+        LoxFunction function = new LoxFunction(stmt, captured, false /* non-init */);
+        define(stmt.slot, stmt.name, stmt.boxed ? new Cell(function) : function);
+        // capture after the definition, so that a local function can refer to itself.
+        capture(captured, stmt.captureDepths, stmt.captureSlots, environment);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitClassStmt(Class stmt) {
+    public Completion visitClassStmt(Class stmt) {
         Object superClass = null;
         if(stmt.superClass != null) {
             superClass = evaluate(stmt.superClass);
@@ -337,30 +702,47 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         // make the class declaration visible (for allow for nested referencing).
-        environment.define(stmt.name.lexeme, null);
+        define(stmt.slot, stmt.name, stmt.boxed ? new Cell(null) : null);
 
         if(stmt.superClass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superClass);
+            environment = new Environment(environment, 1);
+            environment.define(0, superClass);
         }
         
         Map<String, LoxFunction> methods = new HashMap<>();
+        Map<Stmt.Function, Object[]> methodCaptures = new HashMap<>();
+        Environment methodEnvironment = environment;
 
         for(Stmt.Function method : stmt.methods) {
             boolean isInitializer = method.name.lexeme.equals("init");
-            LoxFunction function = new LoxFunction(method, environment, isInitializer);
+            Object[] captured = new Object[method.captureSlots.length];
+            methodCaptures.put(method, captured);
+            LoxFunction function = new LoxFunction(method, captured, isInitializer);
             methods.put(method.name.lexeme, function);
         }
 
-        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superClass, methods);
+        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superClass, methods,
+                                      Shape.root(stmt, (LoxClass)superClass));
 
         // Remove the super class environment if it is slided in.
         if(stmt.superClass != null) {
             environment = environment.getEnclosing();
         }
         
-        environment.assign(stmt.name, klass);
-        return null;
+        if(stmt.boxed) {
+            ((Cell)environment.getAt(0, stmt.slot)).value = klass;
+        } else if(stmt.slot >= 0) {
+            environment.define(stmt.slot, klass);
+        } else {
+            environment.assign(stmt.name, klass);
+        }
+
+        // the methods capture once the class is bound, as they may refer to it.
+        for(Map.Entry<Stmt.Function, Object[]> entry : methodCaptures.entrySet()) {
+            Stmt.Function method = entry.getKey();
+            capture(entry.getValue(), method.captureDepths, method.captureSlots, methodEnvironment);
+        }
+        return Completion.NORMAL;
     }
 
     @Override
@@ -368,7 +750,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object object = evaluate(expr.object);
 
         if(object instanceof LoxInstance) {
-            return ((LoxInstance)object).get(expr.name);
+            return ((LoxInstance)object).get(expr.name, expr.cache);
         }
 
         throw new RuntimeError(expr.name, "Only instances have properties.");
@@ -383,21 +765,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        ((LoxInstance)object).set(expr.name, value, expr.cache);
         return value;
     }
 
     @Override
     public Object visitThisExpr(This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitSuperExpr(Super expr) {
-        // Note: tricky code - first resolve super class, then this at a level down.
-        int distance = locals.get(expr);
-        LoxClass superClass = (LoxClass)environment.getAt(distance, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+        // the super class is captured from the class scope, "this" comes from the method's frame.
+        LoxClass superClass = (LoxClass)lookUpVariable(expr.keyword, expr.depth, expr.slot);
+        LoxInstance object = (LoxInstance)lookUpVariable(expr.keyword, expr.thisDepth, expr.thisSlot);
         LoxFunction method = superClass.findMethod(expr.method.lexeme);
 
         if(method == null) {
@@ -408,35 +789,88 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
     
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if(stmt.value != null) {
+            tailPosition = stmt.tailCall;
             value = evaluate(stmt.value);
         }
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
+    // Stops at the first statement that breaks or returns, and passes that on.
+    Completion executeBlock(List<Stmt> statements,
+                            Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
+            return executeStatements(statements);
+        } finally {
+            this.environment = previous;
+        }
+    }
 
-            for(Stmt statement : statements) {
-                execute(statement);
+    private Completion executeStatements(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if(completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    // Runs a function body in its frame, with the function's captured variables - gives
+    // the value of the return statement that ended it (TAIL_CALL for a call in tail
+    // position), null when it ran off the end.
+    Object executeBlock(List<Stmt> statements,
+                        Environment environment,
+                        Object[] captures) {
+        Object[] previous = this.captures;
+        try {
+            this.captures = captures;
+            if(executeBlock(statements, environment) == Completion.RETURN) {
+                Object value = returnValue;
+                returnValue = null;
+                return value;
             }
+            return null;
         } finally {
-            this.environment = previous;
+            this.captures = previous;
         }
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        // System.out.println("Looking " + name.lexeme + "@" + expr.hashCode() + " at distance:" + distance);
-        if(distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        // System.out.println("Looking " + name.lexeme + " at distance:" + depth + " slot:" + slot);
+        Object value;
+        if(depth >= 0) {
+            value = environment.getAt(depth, slot);
+        } else if(depth == Resolver.CAPTURED) {
+            value = captures[slot];
         } else {
             return globals.get(name);
         }
+        if(value instanceof Cell) return ((Cell)value).value;
+        return value;
+    }
+
+    // Fills a new closure with the variables it captures - a local's current value, or its
+    // cell when it is boxed - from the creating frame (or the creating function's captures).
+    private void capture(Object[] captured, int[] depths, int[] slots, Environment from) {
+        for(int i = 0; i < captured.length; i++) {
+            if(depths[i] == Resolver.CAPTURED) {
+                captured[i] = captures[slots[i]];
+            } else {
+                captured[i] = from.getAt(depths[i], slots[i]);
+            }
+        }
+    }
+
+    // Declarations at the top level are globals (slot -1), everything else has a resolved slot.
+    private void define(int slot, Token name, Object value) {
+        if(slot >= 0) {
+            environment.define(slot, value);
+        } else {
+            environment.define(name.lexeme, value);
+        }
     }
 }
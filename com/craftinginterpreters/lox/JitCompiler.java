@@ -0,0 +1,634 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+import com.craftinginterpreters.lox.Expr.AnonFun;
+import com.craftinginterpreters.lox.Expr.Assign;
+import com.craftinginterpreters.lox.Expr.Binary;
+import com.craftinginterpreters.lox.Expr.Call;
+import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Grouping;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
+import com.craftinginterpreters.lox.Expr.Literal;
+import com.craftinginterpreters.lox.Expr.Logical;
+import com.craftinginterpreters.lox.Expr.Set;
+import com.craftinginterpreters.lox.Expr.Super;
+import com.craftinginterpreters.lox.Expr.This;
+import com.craftinginterpreters.lox.Expr.Unary;
+import com.craftinginterpreters.lox.Expr.Variable;
+import com.craftinginterpreters.lox.Stmt.Block;
+import com.craftinginterpreters.lox.Stmt.Break;
+import com.craftinginterpreters.lox.Stmt.Import;
+import com.craftinginterpreters.lox.Stmt.Class;
+import com.craftinginterpreters.lox.Stmt.Expression;
+import com.craftinginterpreters.lox.Stmt.For;
+import com.craftinginterpreters.lox.Stmt.Function;
+import com.craftinginterpreters.lox.Stmt.If;
+import com.craftinginterpreters.lox.Stmt.Print;
+import com.craftinginterpreters.lox.Stmt.Return;
+import com.craftinginterpreters.lox.Stmt.Var;
+import com.craftinginterpreters.lox.Stmt.While;
+
+import static com.craftinginterpreters.lox.ClassFile.*;
+
+// The JIT tier of the tree-walker: compiles a hot function's body to a JVM class, loaded as a
+// hidden class next to this one, so HotSpot can inline and register-allocate the Lox code.
+// Lox locals become JVM locals, arithmetic on operands known to be numbers stays unboxed, and
+// everything else calls the JitRuntime helpers. Bodies using a construct the compiler does
+// not handle (closures, nested functions and classes, captured variables, super) stay
+// with the tree-walker.
+class JitCompiler implements Expr.Visitor<JitCompiler.Kind>, Stmt.Visitor<Void> {
+
+    // Off with --no-jit.
+    static boolean enabled = true;
+
+    // What a compiled expression leaves on the operand stack.
+    enum Kind {
+        OBJECT,
+        NUMBER,   // an unboxed double
+        BOOLEAN   // an int 0/1
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final String PACKAGE = "com/craftinginterpreters/lox/";
+    private static final String RUNTIME = PACKAGE + "JitRuntime";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "L" + PACKAGE + "Token;";
+    private static final String INTERPRETER = "L" + PACKAGE + "Interpreter;";
+    private static final String INSTANCE = "L" + PACKAGE + "LoxInstance;";
+    private static final String GET = "L" + PACKAGE + "Expr$Get;";
+    private static final String SET = "L" + PACKAGE + "Expr$Set;";
+    private static final String INVOKE = "L" + PACKAGE + "Expr$Invoke;";
+    private static final String FUNCTION = "L" + PACKAGE + "LoxFunction;";
+    private static final String CALL = "(" + INTERPRETER + INSTANCE + "Ljava/util/List;)" + OBJECT;
+
+    // JVM locals of the compiled call(): this, interpreter, receiver, arguments, then the frames.
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int RECEIVER_LOCAL = 2;
+    private static final int ARGUMENTS_LOCAL = 3;
+    private static final int FIRST_FRAME_LOCAL = 4;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private ClassFile classFile;
+    private final List<Object> constants = new ArrayList<>();
+    // JVM local of slot 0 of each runtime frame (the function's, then its blocks'), innermost last.
+    private final List<Integer> frames = new ArrayList<>();
+    private int nextLocal = FIRST_FRAME_LOCAL;
+    private final Stack<Label> loopExits = new Stack<>();
+    // set by a return whose value is a call in tail position, taken by that call.
+    private boolean tailPosition = false;
+
+    // Returns null when the body cannot be compiled - the function keeps being interpreted.
+    static CompiledFunction compile(Function function, boolean isMethod) {
+        try {
+            return new JitCompiler().compileFunction(function, isMethod);
+        } catch(Unsupported | IllegalStateException | IOException
+                | ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private CompiledFunction compileFunction(Function function, boolean isMethod)
+        throws ReflectiveOperationException, IOException {
+        classFile = new ClassFile(PACKAGE + "LoxJit_" + function.name.lexeme, PACKAGE + "CompiledFunction");
+
+        int base = beginFrame(function.frameSize);
+        int first = 0;
+        if(isMethod) {
+            // "this" is slot 0 of a method's frame.
+            classFile.local(ALOAD, RECEIVER_LOCAL);
+            classFile.local(ASTORE, base);
+            first = 1;
+        }
+        for(int i = 0; i < function.params.size(); i++) {
+            classFile.local(ALOAD, ARGUMENTS_LOCAL);
+            classFile.pushInt(i);
+            classFile.invokeInterface("java/util/List", "get", "(I)" + OBJECT);
+            classFile.local(ASTORE, base + first + i);
+        }
+        if(function.boxedParams.length > 0) throw new Unsupported();
+
+        compile(function.body);
+        classFile.op(ACONST_NULL, 1);
+        classFile.op(ARETURN, -1);
+
+        byte[] bytes = classFile.toBytes("call", CALL, nextLocal);
+        java.lang.Class<?> compiled = lookup.defineHiddenClass(bytes, true).lookupClass();
+        return (CompiledFunction)compiled.getConstructor(Object[].class)
+            .newInstance((Object)constants.toArray());
+    }
+
+    private void compile(List<Stmt> statements) {
+        for(Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private Kind compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Frames map onto fresh JVM locals, cleared like a new Environment would be.
+    private int beginFrame(int size) {
+        int base = nextLocal;
+        nextLocal += size;
+        for(int i = base; i < nextLocal; i++) {
+            classFile.op(ACONST_NULL, 1);
+            classFile.local(ASTORE, i);
+        }
+        frames.add(base);
+        return base;
+    }
+
+    private void endFrame() {
+        frames.remove(frames.size() - 1);
+    }
+
+    private int local(int depth, int slot) {
+        if(depth < 0) throw new Unsupported();
+        return frames.get(frames.size() - 1 - depth) + slot;
+    }
+
+    // Statements
+
+    @Override
+    public Void visitBlockStmt(Block stmt) {
+        // the locals of a block in a function are in the function's frame.
+        if(stmt.frameSize == 0) {
+            compile(stmt.statements);
+            return null;
+        }
+        beginFrame(stmt.frameSize);
+        compile(stmt.statements);
+        endFrame();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Expression stmt) {
+        pop(compile(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        classFile.local(ALOAD, INTERPRETER_LOCAL);
+        compileObject(stmt.expression);
+        classFile.invokeStatic(RUNTIME, "print", "(" + INTERPRETER + OBJECT + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        if(stmt.boxed) throw new Unsupported();
+        if(stmt.initializer != null) {
+            compileObject(stmt.initializer);
+        } else {
+            classFile.op(ACONST_NULL, 1);
+        }
+        classFile.local(ASTORE, local(0, stmt.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Return stmt) {
+        if(stmt.value != null) {
+            // a call in tail position returns TAIL_CALL for the trampoline, as interpreted.
+            tailPosition = stmt.tailCall;
+            compileObject(stmt.value);
+        } else {
+            classFile.op(ACONST_NULL, 1);
+        }
+        classFile.op(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        Label elseBranch = new Label();
+        compileCondition(stmt.condition, elseBranch);
+        stmt.thenBranch.accept(this);
+        if(stmt.elseBranch != null) {
+            Label end = new Label();
+            classFile.jump(GOTO, end);
+            classFile.mark(elseBranch);
+            stmt.elseBranch.accept(this);
+            classFile.mark(end);
+        } else {
+            classFile.mark(elseBranch);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        Label start = new Label();
+        Label exit = new Label();
+        classFile.mark(start);
+        compileCondition(stmt.condition, exit);
+        loopExits.push(exit);
+        stmt.body.accept(this);
+        loopExits.pop();
+        classFile.jump(GOTO, start);
+        classFile.mark(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(For stmt) {
+        if(stmt.frameSize > 0) beginFrame(stmt.frameSize);
+        if(stmt.initializer != null) stmt.initializer.accept(this);
+
+        Label start = new Label();
+        Label exit = new Label();
+        classFile.mark(start);
+        compileCondition(stmt.condition, exit);
+        loopExits.push(exit);
+        stmt.body.accept(this);
+        loopExits.pop();
+        if(stmt.increment != null) pop(compile(stmt.increment));
+        classFile.jump(GOTO, start);
+        classFile.mark(exit);
+
+        if(stmt.frameSize > 0) endFrame();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Break stmt) {
+        // the resolver only lets a break into this function's own loops.
+        if(loopExits.isEmpty()) throw new Unsupported();
+        classFile.jump(GOTO, loopExits.peek());
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitImportStmt(Import stmt) {
+        // only at the top level, never in a function body.
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitClassStmt(Class stmt) {
+        throw new Unsupported();
+    }
+
+    // Expressions
+
+    @Override
+    public Kind visitBinaryExpr(Binary expr) {
+        boolean numbers = producesNumber(expr.left) && producesNumber(expr.right);
+        switch(expr.operator.type) {
+            case PLUS:
+                if(numbers) return arithmetic(expr, DADD);
+                compileObject(expr.left);
+                compileObject(expr.right);
+                constant(expr.operator, TOKEN);
+                classFile.invokeStatic(RUNTIME, "add", "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT);
+                return Kind.OBJECT;
+            case MINUS:
+                if(numbers) return arithmetic(expr, DSUB);
+                return helper(expr, "subtract", "D", Kind.NUMBER);
+            case STAR:
+                if(numbers) return arithmetic(expr, DMUL);
+                return helper(expr, "multiply", "D", Kind.NUMBER);
+            case SLASH:
+                if(!numbers) return helper(expr, "divide", "D", Kind.NUMBER);
+                compile(expr.left);
+                compile(expr.right);
+                constant(expr.operator, TOKEN);
+                classFile.invokeStatic(RUNTIME, "divide", "(DD" + TOKEN + ")D");
+                return Kind.NUMBER;
+            case GREATER:
+                if(numbers) return comparison(expr, DCMPL, IFGT);
+                return helper(expr, "greater", "Z", Kind.BOOLEAN);
+            case GREATER_EQUAL:
+                if(numbers) return comparison(expr, DCMPL, IFGE);
+                return helper(expr, "greaterEqual", "Z", Kind.BOOLEAN);
+            case LESS:
+                if(numbers) return comparison(expr, DCMPG, IFLT);
+                return helper(expr, "less", "Z", Kind.BOOLEAN);
+            case LESS_EQUAL:
+                if(numbers) return comparison(expr, DCMPG, IFLE);
+                return helper(expr, "lessEqual", "Z", Kind.BOOLEAN);
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                compileObject(expr.left);
+                compileObject(expr.right);
+                classFile.invokeStatic(RUNTIME, "isEqual", "(" + OBJECT + OBJECT + ")Z");
+                if(expr.operator.type == TokenType.BANG_EQUAL) not();
+                return Kind.BOOLEAN;
+        }
+        throw new Unsupported();
+    }
+
+    @Override
+    public Kind visitGroupingExpr(Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Kind visitLiteralExpr(Literal expr) {
+        if(expr.value instanceof Double) {
+            classFile.pushDouble((double)expr.value);
+            return Kind.NUMBER;
+        }
+        if(expr.value instanceof Boolean) {
+            classFile.pushInt((boolean)expr.value ? 1 : 0);
+            return Kind.BOOLEAN;
+        }
+        if(expr.value == null) {
+            classFile.op(ACONST_NULL, 1);
+        } else {
+            constant(expr.value, null);
+        }
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitLogicalExpr(Logical expr) {
+        // the value of a logical expression is the operand that decided it.
+        Label end = new Label();
+        compileObject(expr.left);
+        classFile.op(DUP, 1);
+        classFile.invokeStatic(RUNTIME, "isTruthy", "(" + OBJECT + ")Z");
+        classFile.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        classFile.op(POP, -1);
+        compileObject(expr.right);
+        classFile.mark(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitUnaryExpr(Unary expr) {
+        if(expr.operator.type == TokenType.MINUS) {
+            if(producesNumber(expr.right)) {
+                compile(expr.right);
+                classFile.op(DNEG, 0);
+            } else {
+                compileObject(expr.right);
+                classFile.invokeStatic(RUNTIME, "negate", "(" + OBJECT + ")D");
+            }
+            return Kind.NUMBER;
+        }
+        compileTruth(expr.right);
+        not();
+        return Kind.BOOLEAN;
+    }
+
+    @Override
+    public Kind visitVariableExpr(Variable expr) {
+        loadVariable(expr.name, expr.depth, expr.slot);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitAssignExpr(Assign expr) {
+        if(expr.depth == Resolver.GLOBAL) {
+            classFile.local(ALOAD, INTERPRETER_LOCAL);
+            constant(expr.name, TOKEN);
+            compileObject(expr.value);
+            classFile.invokeStatic(RUNTIME, "assignGlobal", "(" + INTERPRETER + TOKEN + OBJECT + ")" + OBJECT);
+            return Kind.OBJECT;
+        }
+        int local = local(expr.depth, expr.slot);
+        compileObject(expr.value);
+        classFile.op(DUP, 1);
+        classFile.local(ASTORE, local);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitCallExpr(Call expr) {
+        boolean tail = tailPosition;
+        tailPosition = false;
+        classFile.local(ALOAD, INTERPRETER_LOCAL);
+        compileObject(expr.callee);
+        arguments(expr.arguments);
+        constant(expr.paren, TOKEN);
+        classFile.invokeStatic(RUNTIME, tail ? "tailCall" : "call",
+                               "(" + INTERPRETER + OBJECT + "[" + OBJECT + TOKEN + ")" + OBJECT);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitInvokeExpr(Invoke expr) {
+        boolean tail = tailPosition;
+        tailPosition = false;
+        classFile.local(ALOAD, INTERPRETER_LOCAL);
+        compileObject(expr.object);
+        classFile.op(DUP, 1);
+        constant(expr, INVOKE);
+        classFile.invokeStatic(RUNTIME, "method", "(" + OBJECT + INVOKE + ")" + FUNCTION);
+        // object, method - kept for the invoke below.
+        classFile.op(DUP2, 2);
+        constant(expr, INVOKE);
+        classFile.invokeStatic(RUNTIME, "callee", "(" + OBJECT + FUNCTION + INVOKE + ")" + OBJECT);
+        arguments(expr.arguments);
+        constant(expr, INVOKE);
+        classFile.invokeStatic(RUNTIME, tail ? "tailInvoke" : "invoke",
+                               "(" + INTERPRETER + OBJECT + FUNCTION + OBJECT + "[" + OBJECT + INVOKE + ")" + OBJECT);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitInlineExpr(Inline expr) {
+        List<Expr> arguments = expr.call.arguments;
+        for(int i = 0; i < arguments.size(); i++) {
+            compileObject(arguments.get(i));
+            classFile.local(ASTORE, local(0, expr.slots[i]));
+        }
+        return expr.body.accept(this);
+    }
+
+    // Evaluates the arguments into a new Object[].
+    private void arguments(List<Expr> arguments) {
+        classFile.pushInt(arguments.size());
+        classFile.typeOp(ANEWARRAY, "java/lang/Object");
+        for(int i = 0; i < arguments.size(); i++) {
+            classFile.op(DUP, 1);
+            classFile.pushInt(i);
+            compileObject(arguments.get(i));
+            classFile.op(AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Kind visitGetExpr(Get expr) {
+        compileObject(expr.object);
+        // the node itself, for its inline cache.
+        constant(expr, GET);
+        classFile.invokeStatic(RUNTIME, "get", "(" + OBJECT + GET + ")" + OBJECT);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitSetExpr(Set expr) {
+        compileObject(expr.object);
+        constant(expr.name, TOKEN);
+        classFile.invokeStatic(RUNTIME, "instance", "(" + OBJECT + TOKEN + ")" + INSTANCE);
+        compileObject(expr.value);
+        constant(expr, SET);
+        classFile.invokeStatic(RUNTIME, "set", "(" + INSTANCE + OBJECT + SET + ")" + OBJECT);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitThisExpr(This expr) {
+        loadVariable(expr.keyword, expr.depth, expr.slot);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitSuperExpr(Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Kind visitAnonFunExpr(AnonFun expr) {
+        throw new Unsupported();
+    }
+
+    // Helpers
+
+    private void loadVariable(Token name, int depth, int slot) {
+        if(depth == Resolver.GLOBAL) {
+            classFile.local(ALOAD, INTERPRETER_LOCAL);
+            constant(name, TOKEN);
+            classFile.invokeStatic(RUNTIME, "getGlobal", "(" + INTERPRETER + TOKEN + ")" + OBJECT);
+        } else {
+            classFile.local(ALOAD, local(depth, slot));
+        }
+    }
+
+    // Whether an expression always evaluates to a number, so it can be compiled unboxed.
+    private static boolean producesNumber(Expr expr) {
+        if(expr instanceof Literal) return ((Literal)expr).value instanceof Double;
+        if(expr instanceof Grouping) return producesNumber(((Grouping)expr).expression);
+        if(expr instanceof Unary) return ((Unary)expr).operator.type == TokenType.MINUS;
+        if(expr instanceof Binary) {
+            Binary binary = (Binary)expr;
+            switch(binary.operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+                case PLUS:
+                    return producesNumber(binary.left) && producesNumber(binary.right);
+            }
+        }
+        return false;
+    }
+
+    private Kind arithmetic(Binary expr, int opcode) {
+        compile(expr.left);
+        compile(expr.right);
+        classFile.op(opcode, -2);
+        return Kind.NUMBER;
+    }
+
+    private Kind comparison(Binary expr, int compare, int branch) {
+        Label isTrue = new Label();
+        Label end = new Label();
+        compile(expr.left);
+        compile(expr.right);
+        classFile.op(compare, -3);
+        classFile.jump(branch, isTrue);
+        classFile.pushInt(0);
+        classFile.jump(GOTO, end);
+        classFile.mark(isTrue);
+        classFile.pushInt(1);
+        classFile.mark(end);
+        return Kind.BOOLEAN;
+    }
+
+    // Boxed operands - the helper checks the types once both are evaluated, like the Interpreter.
+    private Kind helper(Binary expr, String name, String returnType, Kind kind) {
+        compileObject(expr.left);
+        compileObject(expr.right);
+        constant(expr.operator, TOKEN);
+        classFile.invokeStatic(RUNTIME, name, "(" + OBJECT + OBJECT + TOKEN + ")" + returnType);
+        return kind;
+    }
+
+    private void compileObject(Expr expr) {
+        while(expr instanceof Grouping) {
+            expr = ((Grouping)expr).expression;
+        }
+        // boxed literals come ready-made from the constants.
+        if(expr instanceof Literal && ((Literal)expr).value != null) {
+            constant(((Literal)expr).value, null);
+            return;
+        }
+        box(compile(expr));
+    }
+
+    private void compileTruth(Expr expr) {
+        Kind kind = compile(expr);
+        if(kind == Kind.NUMBER) {
+            // numbers are always true.
+            classFile.op(POP2, -2);
+            classFile.pushInt(1);
+        } else if(kind == Kind.OBJECT) {
+            classFile.invokeStatic(RUNTIME, "isTruthy", "(" + OBJECT + ")Z");
+        }
+    }
+
+    private void compileCondition(Expr condition, Label isFalse) {
+        compileTruth(condition);
+        classFile.jump(IFEQ, isFalse);
+    }
+
+    private void box(Kind kind) {
+        if(kind == Kind.NUMBER) {
+            classFile.invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+        } else if(kind == Kind.BOOLEAN) {
+            classFile.invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        }
+    }
+
+    private void pop(Kind kind) {
+        if(kind == Kind.NUMBER) {
+            classFile.op(POP2, -2);
+        } else {
+            classFile.op(POP, -1);
+        }
+    }
+
+    private void not() {
+        classFile.pushInt(1);
+        classFile.op(IXOR, -1);
+    }
+
+    private void constant(Object value, String type) {
+        int index = constants.indexOf(value);
+        if(index < 0) {
+            index = constants.size();
+            constants.add(value);
+        }
+        classFile.local(ALOAD, 0);
+        classFile.getConstants();
+        classFile.pushInt(index);
+        classFile.op(AALOAD, -1);
+        if(type != null) {
+            // type is a descriptor, the cast wants the internal name.
+            classFile.typeOp(CHECKCAST, type.substring(1, type.length() - 1));
+        }
+    }
+}
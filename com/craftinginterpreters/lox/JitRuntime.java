@@ -0,0 +1,159 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// Operations the JIT-compiled code calls - the same semantics and errors as the Interpreter,
+// whose checks they share. They are small static methods, so HotSpot inlines them into the
+// compiled Lox code.
+final class JitRuntime {
+
+    private JitRuntime() {}
+
+    static Object getGlobal(Interpreter interpreter, Token name) {
+        return interpreter.globals.get(name);
+    }
+
+    static Object assignGlobal(Interpreter interpreter, Token name, Object value) {
+        interpreter.globals.assign(name, value);
+        return value;
+    }
+
+    static boolean isTruthy(Object object) {
+        return Interpreter.isTruthy(object);
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        return Interpreter.isEqual(a, b);
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        return Interpreter.add(operator, left, right);
+    }
+
+    static double subtract(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static double multiply(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static double divide(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return divide((double)left, (double)right, operator);
+    }
+
+    static double divide(double left, double right, Token operator) {
+        Interpreter.checkNumberNotZero(operator, right);
+        return left / right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static double negate(Object right) {
+        return -(double)right;
+    }
+
+    static void print(Interpreter interpreter, Object value) {
+        interpreter.out.println(Interpreter.stringify(value));
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        if(!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only expr functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        checkArity(function, arguments, paren);
+        return function.call(interpreter, Arrays.asList(arguments));
+    }
+
+    // A call in tail position - a Lox function is left to the trampoline of the caller's invoke().
+    static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+        if(!(callee instanceof LoxFunction)) return call(interpreter, callee, arguments, paren);
+
+        LoxFunction function = (LoxFunction)callee;
+        checkArity(function, arguments, paren);
+        return interpreter.tailCall(function, function.receiver, Arrays.asList(arguments));
+    }
+
+    static Object get(Object object, Expr.Get expr) {
+        if(object instanceof LoxInstance) {
+            return ((LoxInstance)object).get(expr.name, expr.cache);
+        }
+
+        throw new RuntimeError(expr.name, "Only instances have properties.");
+    }
+
+    // A fused obj.name(...) - the method is looked up before the arguments are evaluated, and
+    // callee() is the method itself or, when name is a field, the field's value.
+    static LoxFunction method(Object object, Expr.Invoke expr) {
+        if(!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instances have properties.");
+        }
+        return ((LoxInstance)object).method(expr.name, expr.cache);
+    }
+
+    static Object callee(Object object, LoxFunction method, Expr.Invoke expr) {
+        if(method != null) return method;
+        return ((LoxInstance)object).get(expr.name, expr.cache);
+    }
+
+    static Object invoke(Interpreter interpreter, Object object, LoxFunction method,
+                         Object callee, Object[] arguments, Expr.Invoke expr) {
+        if(method == null) return call(interpreter, callee, arguments, expr.paren);
+
+        checkArity(method, arguments, expr.paren);
+        return method.invoke(interpreter, (LoxInstance)object, Arrays.asList(arguments));
+    }
+
+    static Object tailInvoke(Interpreter interpreter, Object object, LoxFunction method,
+                             Object callee, Object[] arguments, Expr.Invoke expr) {
+        if(method == null) return call(interpreter, callee, arguments, expr.paren);
+
+        checkArity(method, arguments, expr.paren);
+        return interpreter.tailCall(method, (LoxInstance)object, Arrays.asList(arguments));
+    }
+
+    // The instance check of a set comes before its value is evaluated.
+    static LoxInstance instance(Object object, Token name) {
+        if(!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return (LoxInstance)object;
+    }
+
+    static Object set(LoxInstance object, Object value, Expr.Set expr) {
+        object.set(expr.name, value, expr.cache);
+        return value;
+    }
+
+    private static void checkArity(LoxCallable function, Object[] arguments, Token paren) {
+        if(arguments.length != function.arity()) {
+            throw new RuntimeError(paren,
+                                   String.format("Expected %d arguments but got %d.",
+                                                 function.arity(),
+                                                 arguments.length));
+        }
+    }
+}
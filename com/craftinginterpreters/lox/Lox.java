@@ -3,39 +3,96 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.PrintWriter;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 public class Lox {
 
-    private static final Interpreter interpreter = new Interpreter();
+    // where the programs print, on either backend.
+    private static final PrintWriter out = new PrintWriter(System.out, true);
 
-    static boolean hadError = false;
+    private static final Interpreter interpreter = new Interpreter(out);
 
-    static boolean hadRuntimeError = false;
+    // Alternative backend, selected with --vm.
+    private static final Vm vm = new Vm(out);
+
+    private static boolean useVm = false;
+
+    // errors of the command line's programs go to stderr.
+    private static final Reporter console = new Reporter(System.err);
+
+    private static final ThreadLocal<Reporter> reporter = ThreadLocal.withInitial(() -> console);
 
     public static void main(String[] args) throws IOException {
-        if(args.length > 1) {
-            System.out.println("Usages: jlox [script]");
+        String script = null;
+        for(String arg : args) {
+            if(arg.equals("--vm")) {
+                useVm = true;
+            } else if(arg.equals("--no-jit")) {
+                JitCompiler.enabled = false;
+            } else if(arg.equals("--no-opt")) {
+                Optimizer.enabled = false;
+            } else if(arg.equals("--inline-report")) {
+                Inliner.report = true;
+            } else if(arg.equals("--cache")) {
+                AstCache.enabled = true;
+            } else if(arg.startsWith("--snapshot=")) {
+                Snapshot.load = Paths.get(arg.substring("--snapshot=".length()));
+            } else if(arg.startsWith("--save-snapshot=")) {
+                Snapshot.save = Paths.get(arg.substring("--save-snapshot=".length()));
+            } else if(script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                System.out.println("Usages: jlox [--vm] [--no-jit] [--no-opt] [--inline-report] [--cache] [--snapshot=file] [--save-snapshot=file] [script]");
+                System.exit((64));
+            }
+        }
+        if(useVm && (Snapshot.load != null || Snapshot.save != null)) {
+            // snapshots hold the interpreter's values, the vm has its own.
+            System.out.println("Snapshots are not supported with --vm");
             System.exit((64));
-        } else if(args.length == 1) {
-            runFile(args[0]);
+        }
+
+        if(Snapshot.load != null) Snapshot.load(Snapshot.load, interpreter.globals);
+
+        if(script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
+
+        // a program that failed leaves no snapshot.
+        if(Snapshot.save != null && !reporter().hadError && !reporter().hadRuntimeError) Snapshot.save(Snapshot.save, interpreter.globals);
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()), false);
-        if(hadError) System.exit(65);
-        if(hadRuntimeError) System.exit(65);
+        Path script = Paths.get(path);
+        // scanned from the mapping - the file is never copied into the heap.
+        MappedSource source = MappedSource.map(script);
+        Set<String> assignedGlobals = new HashSet<>();
+
+        List<Stmt> statements = null;
+        if(AstCache.enabled) statements = AstCache.load(script, source, assignedGlobals);
+        if(statements == null) {
+            statements = compile(source, false, assignedGlobals);
+            if(statements != null && AstCache.enabled) {
+                AstCache.save(script, source, statements, assignedGlobals);
+            }
+        }
+        if(statements != null && Module.link(statements, script.toAbsolutePath().getParent(), assignedGlobals)) {
+            execute(statements, false, assignedGlobals);
+        }
+
+        if(reporter().hadError) System.exit(65);
+        if(reporter().hadRuntimeError) System.exit(65);
     }
 
     private static void runPrompt() throws IOException {
@@ -46,7 +103,12 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if(line == null || line.isEmpty()) break;
-            run(line, true);
+            Set<String> assignedGlobals = new HashSet<>();
+            List<Stmt> statements = compile(line, true, assignedGlobals);
+            // modules imported at the prompt are found from the working directory.
+            if(statements != null && Module.link(statements, Paths.get("").toAbsolutePath(), assignedGlobals)) {
+                execute(statements, true, assignedGlobals);
+            }
         }
     }
 
@@ -59,20 +121,44 @@ public class Lox {
         System.out.println(new AstPrinter().print(expression));
     }
 
-    private static void run(String source, boolean repl) {
+    // The resolved statements of the source, null when it has errors. The globals the program
+    // assigns are added to assignedGlobals.
+    static List<Stmt> compile(CharSequence source, boolean repl, Set<String> assignedGlobals) {
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        Parser parser = new Parser(tokens, repl);
+        Parser parser = new Parser(scanner, repl);
         List<Stmt> statements = parser.parse();
 
-        if(hadError) return;
+        if(reporter().hadError) return null;
 
         // Semantic analysis pass (for resolver)
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
-        if(hadError) return;
+        if(reporter().hadError) return null;
+
+        assignedGlobals.addAll(resolver.assignedGlobals);
+        return statements;
+    }
+
+    // Optimizes the statements - with inlining unless a later program may redefine a function.
+    static void optimize(List<Stmt> statements, boolean inline, Set<String> assignedGlobals) {
+        if(Optimizer.enabled) {
+            Inliner inliner = inline ? new Inliner(statements, assignedGlobals) : null;
+            new Optimizer(inliner).optimize(statements);
+        }
+    }
+
+    private static void execute(List<Stmt> statements, boolean repl, Set<String> assignedGlobals) {
+        // no inlining at the prompt or in a snapshot - a later line or program may redefine
+        // a function.
+        optimize(statements, !repl && Snapshot.save == null, assignedGlobals);
+
+        if(useVm) {
+            VmFunction function = new VmCompiler().compile(statements);
+            if(reporter().hadError) return;
+            vm.interpret(function);
+            return;
+        }
 
         interpreter.interpret(statements);
             
@@ -81,6 +167,18 @@ public class Lox {
         // interpreter.interpret(expr);
     }
 
+    // The reporter errors on this thread go to.
+    static Reporter reporter() {
+        return reporter.get();
+    }
+
+    // Sends the errors on this thread to r - returns the reporter they went to before.
+    static Reporter reportTo(Reporter r) {
+        Reporter previous = reporter.get();
+        reporter.set(r);
+        return previous;
+    }
+
     public static void error(int line, String message) {
         report(line, "", message);
     }
@@ -94,20 +192,14 @@ public class Lox {
     }
 
     private static void report(int line, String where, String message) {
-        err("[line " + line + "] Error " + where + ": " + message);
-        hadError = true;
+        reporter().error(line, "[line " + line + "] Error " + where + ": " + message);
     }
     
     private static void out(String msg) {
         System.out.println(msg);
     }
 
-    private static void err(String msg) {
-        System.err.println(msg);
-    }
-
     public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        reporter().runtimeError(error.token.line, error.getMessage() + "\n[line " + error.token.line + "]");
     }
 }
@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Map;
+
+import javax.script.SimpleBindings;
+
+// The globals of an interpreter as the engine scope of a LoxScriptEngine - the bindings are
+// the interpreter's global map itself, so a host's put() defines a Lox global and a script's
+// globals are there to get(), with nothing copied between them. Values are converted to Lox's
+// as they are put (Java numbers become doubles), and Lox strings to Java's as they are got.
+final class LoxBindings extends SimpleBindings {
+    final Interpreter interpreter;
+
+    LoxBindings() {
+        this(new Interpreter());
+    }
+
+    private LoxBindings(Interpreter interpreter) {
+        super(interpreter.globals.bindings());
+        this.interpreter = interpreter;
+    }
+
+    @Override
+    public Object put(String name, Object value) {
+        return LoxScriptEngine.toJava(super.put(name, LoxScriptEngine.toLox(value)));
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Object> values) {
+        for(Map.Entry<? extends String, ? extends Object> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Object get(Object name) {
+        return LoxScriptEngine.toJava(super.get(name));
+    }
+
+    @Override
+    public Object remove(Object name) {
+        return LoxScriptEngine.toJava(super.remove(name));
+    }
+}
@@ -1,36 +1,59 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class LoxClass implements LoxCallable {
+class LoxClass implements LoxCallable, Serializable {
+    private static final long serialVersionUID = 1L;
+
     final String name;
     final LoxClass superClass;
-    final Map<String, LoxFunction> methods;
+    // own and inherited methods, flattened when the class is created - classes never change
+    // afterwards, so a lookup is one probe whatever the depth of the hierarchy.
+    private final Map<String, LoxFunction> methods;
+    // the same methods, at their slots in the shapes (see Shape.method).
+    private final LoxFunction[] methodTable;
+    private final LoxFunction initializer;
+    // root of the transition tree of its instances' shapes.
+    final Shape rootShape;
+    // field slots a new instance starts with - the most any instance has needed so far.
+    int instanceSize = 0;
 
     LoxClass(String name,
              LoxClass superClass,
-             Map<String, LoxFunction> methods) {
+             Map<String, LoxFunction> methods,
+             Shape rootShape) {
 	this.name = name;
         this.superClass = superClass;
-        this.methods = methods;
+        this.methods = new HashMap<>();
+        if(superClass != null) {
+            this.methods.putAll(superClass.methods);
+        }
+        // own methods override the inherited ones.
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
+        this.rootShape = rootShape;
+        this.methodTable = new LoxFunction[rootShape.methodCount()];
+        for(Map.Entry<String, LoxFunction> method : this.methods.entrySet()) {
+            methodTable[rootShape.method(method.getKey())] = method.getValue();
+        }
     }
 
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if(initializer != null) {
-            // binds and call the init (constructor) immediately.
-            initializer.bind(instance).call(interpreter, arguments);
+            // call the init (constructor) on the new instance immediately.
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if(initializer != null) {
             return initializer.arity();
         }
@@ -38,15 +61,11 @@ class LoxClass implements LoxCallable {
     }
 
     LoxFunction findMethod(String name) {
-        if(methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        return methods.get(name);
+    }
 
-        if(superClass != null) {
-            return superClass.findMethod(name);
-        }
-        
-        return null;
+    LoxFunction methodAt(int slot) {
+        return methodTable[slot];
     }
                 
     @Override
@@ -1,64 +1,118 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-public class LoxFunction implements LoxCallable {
+public class LoxFunction implements LoxCallable, Serializable {
+    private static final long serialVersionUID = 1L;
 
+    // Calls of a function declaration before its body is handed to the JIT.
+    private static final int JIT_THRESHOLD = 1000;
+
+    // the declaration the JIT state lives on - null for anonymous functions.
+    private final Stmt.Function declaration;
     private final String name;
     private final List<Token> params;
     private final List<Stmt> body;
-    private final Environment closure;
+    private final int frameSize;
+    private final int[] boxedParams;
+    // flat closure - only the variables (or their cells) the body refers to from enclosing functions.
+    private final Object[] captures;
     private final boolean isInitializer;
+    // the instance a method is bound to - methods are only ever called bound.
+    final LoxInstance receiver;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
-	this.closure = closure;
+    LoxFunction(Stmt.Function declaration, Object[] captures, boolean isInitializer) {
+	this.declaration = declaration;
+	this.captures = captures;
 	this.name = declaration.name.lexeme;
 	this.params = declaration.params;
 	this.body = declaration.body;
+	this.frameSize = declaration.frameSize;
+	this.boxedParams = declaration.boxedParams;
 	this.isInitializer = isInitializer;
+	this.receiver = null;
     }
 
-    LoxFunction(Expr.AnonFun definition, Environment closure) {
-	this.closure = closure;
+    LoxFunction(Expr.AnonFun definition, Object[] captures) {
+	this.declaration = null;
+	this.captures = captures;
 	this.name = "__AnonFunc__";
 	this.params = definition.params;
 	this.body = definition.body;
+	this.frameSize = definition.frameSize;
+	this.boxedParams = definition.boxedParams;
 	this.isInitializer = false;
+	this.receiver = null;
     }
 
-    LoxFunction(String name, List<Token> params, List<Stmt> body, Environment closure, boolean isInitializer) {
-	this.name = name;
-	this.params = params;
-	this.body = body;
-	this.closure = closure;
-	this.isInitializer = isInitializer;
+    private LoxFunction(LoxFunction method, LoxInstance receiver) {
+	this.declaration = method.declaration;
+	this.name = method.name;
+	this.params = method.params;
+	this.body = method.body;
+	this.frameSize = method.frameSize;
+	this.boxedParams = method.boxedParams;
+	this.captures = method.captures;
+	this.isInitializer = method.isInitializer;
+	this.receiver = receiver;
     }
     
     LoxFunction bind(LoxInstance instance) {
-	// introduce a new closure enviroment for local (this) defintion.
-	Environment environment = new Environment(closure);
-	environment.define("this", instance);
-	return  new LoxFunction(this.name, this.params, this.body, environment, this.isInitializer);
+	// the captures are shared, the instance goes into the frame's "this" slot at the call.
+	return new LoxFunction(this, instance);
     }
     
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-	Environment environment = new Environment(closure);
+	return invoke(interpreter, receiver, arguments);
+    }
+
+    // Calls the function with receiver as "this" - so a method can be called on an instance
+    // without binding it first. receiver is null for plain functions.
+    Object invoke(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+	Object value = run(interpreter, receiver, arguments);
+	// the trampoline - a body ending in a call in tail position has returned, and the call
+	// is made from here, so a chain of tail calls does not grow the Java stack.
+	while(value == Interpreter.TAIL_CALL) {
+	    value = interpreter.tailFunction.run(interpreter, interpreter.tailReceiver, interpreter.tailArguments);
+	}
+	return value;
+    }
+
+    private Object run(Interpreter interpreter, LoxInstance receiver, List<Object> arguments) {
+	if(declaration != null) {
+	    CompiledFunction compiled = declaration.compiled;
+	    if(compiled == null && ++declaration.calls == JIT_THRESHOLD && JitCompiler.enabled) {
+		// stays null when the body cannot be compiled, and the count never comes back here.
+		compiled = declaration.compiled = JitCompiler.compile(declaration, receiver != null);
+	    }
+	    if(compiled != null) {
+		Object value = compiled.call(interpreter, receiver, arguments);
+		return isInitializer ? receiver : value;
+	    }
+	}
+
+	// params take the first slots of the frame (after "this" for methods), body locals follow them.
+	// The frame does not link to any enclosing one - outer variables come from the captures.
+	Environment environment = new Environment(null, frameSize);
+	int first = 0;
+	if(receiver != null) {
+	    environment.define(0, receiver);
+	    first = 1;
+	}
 	for(int i = 0; i < params.size(); i++) {
-	    environment.define(params.get(i).lexeme, arguments.get(i));
+	    environment.define(first + i, arguments.get(i));
 	}
-	try {
-	    interpreter.executeBlock(body, environment);
-	} catch(Return returnValue) {
-	    // special case to handle explicit return from init() method.
-	    if(isInitializer) return closure.getAt(0, "this");
-	    return returnValue.value;
+	for(int slot : boxedParams) {
+	    environment.define(slot, new Cell(environment.getAt(0, slot)));
 	}
+	Object value = interpreter.executeBlock(body, environment, captures);
 
-	// special case to return "this" when init is called.
-	if(isInitializer) return closure.getAt(0, "this");
+	// special case to return "this" when init is called (or returns early).
+	if(isInitializer) return receiver;
 
-	return null;
+	return value;
     }
     
     @Override
@@ -1,34 +1,138 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-class LoxInstance {
+class LoxInstance implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Instances getting more fields than this leave the shapes for a plain map.
+    private static final int MAX_SHAPE_FIELDS = 32;
+
     private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
-    
+    // field layout and values - shape is null in dictionary mode, where fields holds them.
+    private Shape shape;
+    private Object[] values;
+    private Map<String, Object> fields = null;
+
     LoxInstance(LoxClass klass) {
 	this.klass = klass;
+	this.shape = klass.rootShape;
+	this.values = new Object[klass.instanceSize];
     }
 
-    Object get(Token name) {
-	if(fields.containsKey(name.lexeme)) {
-	    return fields.get(name.lexeme);
+    // Fields shadow methods. Where the property was found is remembered per shape at the
+    // access site (cache) - see locate().
+    Object get(Token name, InlineCache cache) {
+	if(shape == null) {
+	    Object value = fields.get(name.lexeme);
+	    if(value != null || fields.containsKey(name.lexeme)) {
+		return value;
+	    }
+	    return findMethod(name).bind(this);
 	}
 
-	LoxFunction method = klass.findMethod(name.lexeme);
-	if(method != null) {
-	    // wrap with a new environment for this closure capturing this instnace (as "this").
-	    return method.bind(this);
+	int location = locate(name, cache);
+	if(location >= 0) {
+	    return values[location];
+	}
+	// the instance becomes the method's receiver (its "this").
+	return klass.methodAt(-1 - location).bind(this);
+    }
+
+    // For a fused obj.name(...) - the method to invoke with this instance as its receiver, or
+    // null when name is a field (whose value get() gives). Shares the site's cache with get().
+    LoxFunction method(Token name, InlineCache cache) {
+	if(shape == null) {
+	    if(fields.containsKey(name.lexeme)) return null;
+	    return findMethod(name);
+	}
+
+	int location = locate(name, cache);
+	return location >= 0 ? null : klass.methodAt(-1 - location);
+    }
+
+    // Where the property is for this instance's shape - the slot of a field, or -1 - the slot
+    // of a method in the method table of the class. The shapes and slots are those of every
+    // class of the class statement, so the site's entries hold for them all.
+    private int locate(Token name, InlineCache cache) {
+	Object cached = cache.lookup(shape);
+	if(cached != null) return (Integer)cached;
+
+	int location = shape.slot(name.lexeme);
+	if(location < 0) {
+	    int method = shape.method(name.lexeme);
+	    if(method < 0) {
+		throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+	    }
+	    location = -1 - method;
+	}
+	cache.add(shape, location);
+	return location;
+    }
+
+    // The access site (cache) remembers the slot of an existing field, or the shape an
+    // instance of this shape moves to when the field is added.
+    void set(Token name, Object value, InlineCache cache) {
+	if(shape == null) {
+	    fields.put(name.lexeme, value);
+	    return;
+	}
+
+	Object cached = cache.lookup(shape);
+	if(cached instanceof Integer) {
+	    values[(Integer)cached] = value;
+	    return;
+	}
+	if(cached == null) {
+	    int slot = shape.slot(name.lexeme);
+	    if(slot >= 0) {
+		cache.add(shape, slot);
+		values[slot] = value;
+		return;
+	    }
+	    if(shape.size == MAX_SHAPE_FIELDS) {
+		toDictionary();
+		fields.put(name.lexeme, value);
+		return;
+	    }
+	    cached = shape.add(name.lexeme);
+	    cache.add(shape, cached);
+	}
+	addField((Shape)cached, value);
+    }
+
+    private void addField(Shape next, Object value) {
+	if(next.size > values.length) {
+	    values = Arrays.copyOf(values, Math.max(next.size, values.length * 2));
+	}
+	values[next.size - 1] = value;
+	shape = next;
+	// new instances of the class start with room for the fields this one got.
+	if(next.size > klass.instanceSize) {
+	    klass.instanceSize = next.size;
 	}
-	
-	throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
-    void set(Token name, Object value) {
-	fields.put(name.lexeme, value);
+    private void toDictionary() {
+	fields = new HashMap<>();
+	for(Map.Entry<String, Integer> slot : shape.slots().entrySet()) {
+	    fields.put(slot.getKey(), values[slot.getValue()]);
+	}
+	shape = null;
+	values = null;
     }
-    
+
+    private LoxFunction findMethod(Token name) {
+	LoxFunction method = klass.findMethod(name.lexeme);
+	if(method == null) {
+	    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+	}
+	return method;
+    }
+
     @Override
     public String toString() {
 	return this.klass + "-instance";
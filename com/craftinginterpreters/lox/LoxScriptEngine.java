@@ -0,0 +1,245 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+
+// jlox as a javax.script engine. A script is compiled to a Program (compile() gives it as a
+// CompiledScript, for a host to keep and evaluate again without compiling), and evaluated
+// with the engine scope of the context as its globals: the bindings of createBindings() (the
+// default) are those of an interpreter kept with them - see LoxBindings - any other Bindings
+// are used as the global map of a new interpreter. Functions and methods the scripts defined
+// are called with invokeFunction() and invokeMethod().
+//
+// An evaluation returns null - Lox statements have no value. Like the command line, an engine
+// runs one script at a time: threads wanting to run scripts at once use engines of their own,
+// or Programs.
+public class LoxScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+
+    private final ScriptEngineFactory factory;
+
+    LoxScriptEngine(ScriptEngineFactory factory) {
+        this.factory = factory;
+        context.setBindings(createBindings(), ScriptContext.ENGINE_SCOPE);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new LoxBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        try {
+            // the engine scope outlives the script - no call is inlined.
+            return new Compiled(Program.compileShared(script));
+        } catch(ScriptError error) {
+            throw new ScriptException(error.getMessage(), null, error.getLine());
+        }
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        StringBuilder source = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            for(int count = script.read(buffer); count != -1; count = script.read(buffer)) {
+                source.append(buffer, 0, count);
+            }
+        } catch(IOException e) {
+            throw new ScriptException(e);
+        }
+        return compile(source.toString());
+    }
+
+    private class Compiled extends CompiledScript {
+        private final Program program;
+
+        Compiled(Program program) {
+            this.program = program;
+        }
+
+        @Override
+        public Object eval(ScriptContext context) throws ScriptException {
+            try {
+                program.execute(interpreter(context));
+            } catch(RuntimeError error) {
+                throw scriptException(error, context);
+            }
+            return null;
+        }
+
+        @Override
+        public ScriptEngine getEngine() {
+            return LoxScriptEngine.this;
+        }
+    }
+
+    @Override
+    public Object invokeFunction(String name, Object... arguments)
+        throws ScriptException, NoSuchMethodException {
+        Interpreter interpreter = interpreter(context);
+        Object function = interpreter.globals.bindings().get(name);
+        if(!(function instanceof LoxCallable)) {
+            throw new NoSuchMethodException("No function '" + name + "'.");
+        }
+        return call(interpreter, (LoxCallable)function, arguments);
+    }
+
+    @Override
+    public Object invokeMethod(Object object, String name, Object... arguments)
+        throws ScriptException, NoSuchMethodException {
+        if(!(object instanceof LoxInstance)) {
+            throw new IllegalArgumentException("Not a Lox instance: " + object);
+        }
+        Interpreter interpreter = interpreter(context);
+        Object method;
+        try {
+            // as obj.name(...) in Lox - a field holding a function is called too.
+            method = ((LoxInstance)object).get(new Token(TokenType.IDENTIFIER, name, null, 0),
+                                               new InlineCache());
+        } catch(RuntimeError undefined) {
+            throw new NoSuchMethodException("No method '" + name + "' on " + object + ".");
+        }
+        if(!(method instanceof LoxCallable)) {
+            throw new NoSuchMethodException("'" + name + "' of " + object + " is not a method.");
+        }
+        return call(interpreter, (LoxCallable)method, arguments);
+    }
+
+    private Object call(Interpreter interpreter, LoxCallable callable, Object[] arguments)
+        throws ScriptException {
+        List<Object> values = new ArrayList<>();
+        if(arguments != null) {
+            for(Object argument : arguments) {
+                values.add(toLox(argument));
+            }
+        }
+        if(values.size() != callable.arity()) {
+            throw new ScriptException("Expected " + callable.arity() + " arguments but got "
+                                      + values.size() + ".");
+        }
+        try {
+            return toJava(callable.call(interpreter, values));
+        } catch(RuntimeError error) {
+            throw scriptException(error, context);
+        }
+    }
+
+    @Override
+    public <T> T getInterface(Class<T> type) {
+        return proxy(type, null);
+    }
+
+    @Override
+    public <T> T getInterface(Object object, Class<T> type) {
+        if(!(object instanceof LoxInstance)) {
+            throw new IllegalArgumentException("Not a Lox instance: " + object);
+        }
+        return proxy(type, object);
+    }
+
+    // The interface's methods call the global functions (object null) or the methods of the
+    // object of the same names.
+    private <T> T proxy(Class<T> type, Object object) {
+        if(type == null || !type.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + type);
+        }
+        InvocationHandler handler = (proxy, method, arguments) -> {
+            if(method.getDeclaringClass() == Object.class) return objectMethod(proxy, method, arguments);
+            Object value = object == null
+                ? invokeFunction(method.getName(), arguments)
+                : invokeMethod(object, method.getName(), arguments);
+            return returned(value, method.getReturnType());
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] arguments) {
+        switch(method.getName()) {
+            case "equals": return proxy == arguments[0];
+            case "hashCode": return System.identityHashCode(proxy);
+            default: return "Lox proxy of " + proxy.getClass().getInterfaces()[0].getName();
+        }
+    }
+
+    // A Lox number returned as the method's other number type.
+    private static Object returned(Object value, Class<?> type) {
+        if(type == void.class) return null;
+        if(!(value instanceof Double)) return value;
+        double number = (Double)value;
+        if(type == int.class || type == Integer.class) return (int)number;
+        if(type == long.class || type == Long.class) return (long)number;
+        if(type == float.class || type == Float.class) return (float)number;
+        if(type == short.class || type == Short.class) return (short)number;
+        if(type == byte.class || type == Byte.class) return (byte)number;
+        return value;
+    }
+
+    // The interpreter of the context's engine scope, printing to its writer.
+    private static Interpreter interpreter(ScriptContext context) {
+        PrintWriter out = printWriter(context.getWriter());
+        Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if(bindings instanceof LoxBindings) {
+            Interpreter interpreter = ((LoxBindings)bindings).interpreter;
+            interpreter.out = out;
+            return interpreter;
+        }
+        return new Interpreter(out, new Environment(bindings));
+    }
+
+    private static PrintWriter printWriter(Writer writer) {
+        if(writer instanceof PrintWriter) return (PrintWriter)writer;
+        return new PrintWriter(writer, true);
+    }
+
+    private static ScriptException scriptException(RuntimeError error, ScriptContext context) {
+        Object file = context.getAttribute(ScriptEngine.FILENAME);
+        return new ScriptException(error.getMessage(), file == null ? null : file.toString(), error.token.line);
+    }
+
+    // Java values as Lox values - numbers are doubles, strings Strings.
+    static Object toLox(Object value) {
+        if(value instanceof Double) return value;
+        if(value instanceof Number) return ((Number)value).doubleValue();
+        if(value instanceof Character) return value.toString();
+        return value;
+    }
+
+    // Lox values as Java values - a rope is the String of its text.
+    static Object toJava(Object value) {
+        if(value instanceof Rope) return value.toString();
+        return value;
+    }
+}
@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+// A source file mapped into memory instead of read into the heap. The Scanner reads it as a
+// CharSequence of its bytes - the charset is taken to be ASCII-compatible, so they are the
+// characters wherever the syntax is - and only the text of a token is decoded, with the
+// default charset (a string literal may hold other characters).
+final class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final Charset charset;
+
+    private MappedSource(ByteBuffer bytes, Charset charset) {
+        this.bytes = bytes;
+        this.charset = charset;
+    }
+
+    static MappedSource map(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path)) {
+            // the mapping stays valid once the channel is closed.
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedSource(bytes, Charset.defaultCharset());
+        }
+    }
+
+    // The source's bytes, from the start.
+    ByteBuffer bytes() {
+        return bytes.duplicate();
+    }
+
+    @Override
+    public int length() {
+        return bytes.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char)(bytes.get(index) & 0xff);
+    }
+
+    // The decoded text of the bytes from start to end.
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        for(int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if(b < 0) return decode(start, end);
+            chars[i - start] = (char)b;
+        }
+        return new String(chars);
+    }
+
+    private String decode(int start, int end) {
+        ByteBuffer range = bytes.duplicate();
+        range.position(start);
+        range.limit(end);
+        return charset.decode(range).toString();
+    }
+
+    @Override
+    public String toString() {
+        return decode(0, length());
+    }
+}
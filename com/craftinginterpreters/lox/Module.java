@@ -0,0 +1,150 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.craftinginterpreters.lox.Stmt.Import;
+
+// A Lox file imported by another (import "path";). It is compiled - scanned, parsed, resolved
+// and optimized - once per process and kept for the later imports of the same file while
+// neither it nor a module it imports, directly or not, is modified, so the scripts importing a
+// library share its front-end work. A module runs
+// once per interpreter, at its first import, in the global scope: the globals it declares are
+// what it exports.
+//
+// Imports are linked when the importing program is compiled, which loads their modules and
+// reports a missing or broken module as a compile error - and lets the Inliner know the
+// globals the modules declare and assign.
+final class Module {
+
+    private static final Map<Path, Module> modules = new HashMap<>();
+    // the modules being loaded - an import of one of them is circular.
+    private static final Set<Path> loading = new HashSet<>();
+
+    // the times the files of the module and of its imports were modified, when it was compiled.
+    private final Map<Path, FileTime> files;
+    final List<Stmt> statements;
+    // globals declared at the top level of the module and of its imports.
+    final Set<String> declaredGlobals = new HashSet<>();
+    // globals assigned by the module and by its imports (see Resolver.assignedGlobals).
+    final Set<String> assignedGlobals = new HashSet<>();
+    // the module compiled for the vm, when it is first needed.
+    private VmFunction vmFunction = null;
+
+    private Module(Map<Path, FileTime> files, List<Stmt> statements) {
+        this.files = files;
+        this.statements = statements;
+    }
+
+    // Loads the modules of the imports among statements (a program in directory) - false when
+    // one of them could not be loaded, which has been reported. The globals the modules assign
+    // are added to assignedGlobals.
+    static synchronized boolean link(List<Stmt> statements, Path directory, Set<String> assignedGlobals) {
+        for(Stmt statement : statements) {
+            if(!(statement instanceof Import)) continue;
+            Import stmt = (Import)statement;
+            stmt.module = load(stmt, directory.resolve(stmt.path));
+            if(stmt.module == null) return false;
+            assignedGlobals.addAll(stmt.module.assignedGlobals);
+        }
+        return true;
+    }
+
+    private static Module load(Import stmt, Path file) {
+        Path path;
+        FileTime modified;
+        try {
+            path = file.toRealPath();
+            modified = Files.getLastModifiedTime(path);
+        } catch(IOException e) {
+            Lox.error(stmt.keyword, "Cannot find module '" + stmt.path + "'.");
+            return null;
+        }
+
+        Module module = modules.get(path);
+        if(module != null && module.isCurrent()) return module;
+
+        if(!loading.add(path)) {
+            Lox.error(stmt.keyword, "Circular import of module '" + stmt.path + "'.");
+            return null;
+        }
+        try {
+            module = compile(path, modified);
+        } catch(IOException e) {
+            Lox.error(stmt.keyword, "Cannot read module '" + stmt.path + "'.");
+            return null;
+        } finally {
+            loading.remove(path);
+        }
+        if(module == null) {
+            // its own errors have been reported, with lines in the module's file.
+            Lox.error(stmt.keyword, "Cannot compile module '" + stmt.path + "'.");
+            return null;
+        }
+        modules.put(path, module);
+        return module;
+    }
+
+    private static Module compile(Path path, FileTime modified) throws IOException {
+        MappedSource source = MappedSource.map(path);
+        Set<String> assignedGlobals = new HashSet<>();
+
+        List<Stmt> statements = null;
+        if(AstCache.enabled) statements = AstCache.load(path, source, assignedGlobals);
+        if(statements == null) {
+            statements = Lox.compile(source, false, assignedGlobals);
+            if(statements == null) return null;
+            if(AstCache.enabled) AstCache.save(path, source, statements, assignedGlobals);
+        }
+        if(!link(statements, path.getParent(), assignedGlobals)) return null;
+
+        // no inlining - the programs importing the module may redefine its functions.
+        if(Optimizer.enabled) new Optimizer(null).optimize(statements);
+
+        Map<Path, FileTime> files = new HashMap<>();
+        files.put(path, modified);
+        for(Stmt statement : statements) {
+            if(statement instanceof Import) files.putAll(((Import)statement).module.files);
+        }
+
+        Module module = new Module(files, statements);
+        module.assignedGlobals.addAll(assignedGlobals);
+        for(Stmt statement : statements) {
+            if(statement instanceof Stmt.Function) {
+                module.declaredGlobals.add(((Stmt.Function)statement).name.lexeme);
+            } else if(statement instanceof Stmt.Var) {
+                module.declaredGlobals.add(((Stmt.Var)statement).name.lexeme);
+            } else if(statement instanceof Stmt.Class) {
+                module.declaredGlobals.add(((Stmt.Class)statement).name.lexeme);
+            } else if(statement instanceof Import) {
+                module.declaredGlobals.addAll(((Import)statement).module.declaredGlobals);
+            }
+        }
+        return module;
+    }
+
+    // Whether none of the module's files has been modified (or removed) since it was compiled.
+    private boolean isCurrent() {
+        for(Map.Entry<Path, FileTime> file : files.entrySet()) {
+            try {
+                if(!Files.getLastModifiedTime(file.getKey()).equals(file.getValue())) return false;
+            } catch(IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The module's top level compiled for the vm - run as a script, it defines the globals.
+    synchronized VmFunction vmFunction() {
+        if(vmFunction == null) vmFunction = new VmCompiler().compile(statements);
+        return vmFunction;
+    }
+}
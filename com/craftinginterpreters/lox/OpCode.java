@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+// Instruction set of the bytecode VM. Operands follow the opcode byte:
+// 'short' operands are two bytes (big-endian), 'byte' operands are one.
+final class OpCode {
+    static final byte CONSTANT      = 0;  // short: constant index
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;  // byte: frame slot
+    static final byte SET_LOCAL     = 6;  // byte: frame slot
+    static final byte GET_GLOBAL    = 7;  // short: name constant
+    static final byte DEFINE_GLOBAL = 8;  // short: name constant
+    static final byte SET_GLOBAL    = 9;  // short: name constant
+    static final byte GET_UPVALUE   = 10; // byte: upvalue index
+    static final byte SET_UPVALUE   = 11; // byte: upvalue index
+    static final byte GET_PROPERTY  = 12; // short: name constant
+    static final byte SET_PROPERTY  = 13; // short: name constant
+    static final byte GET_SUPER     = 14; // short: name constant
+    static final byte EQUAL         = 15;
+    static final byte GREATER       = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS          = 18;
+    static final byte LESS_EQUAL    = 19;
+    static final byte ADD           = 20;
+    static final byte SUBTRACT      = 21;
+    static final byte MULTIPLY      = 22;
+    static final byte DIVIDE        = 23;
+    static final byte NOT           = 24;
+    static final byte NEGATE        = 25;
+    static final byte PRINT         = 26;
+    static final byte JUMP          = 27; // short: forward offset
+    static final byte JUMP_IF_FALSE = 28; // short: forward offset
+    static final byte LOOP          = 29; // short: backward offset
+    static final byte CALL          = 30; // byte: argument count
+    static final byte INVOKE        = 31; // short: name constant, byte: argument count
+    static final byte SUPER_INVOKE  = 32; // short: name constant, byte: argument count
+    static final byte CLOSURE       = 33; // short: function constant, then (isLocal, index) byte pairs
+    static final byte CLOSE_UPVALUE = 34;
+    static final byte RETURN        = 35;
+    static final byte CLASS         = 36; // short: name constant
+    static final byte INHERIT       = 37;
+    static final byte METHOD        = 38; // short: name constant
+    static final byte IMPORT        = 39; // short: module constant
+
+    private OpCode() {}
+}
@@ -0,0 +1,465 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.craftinginterpreters.lox.Expr.AnonFun;
+import com.craftinginterpreters.lox.Expr.Assign;
+import com.craftinginterpreters.lox.Expr.Binary;
+import com.craftinginterpreters.lox.Expr.Call;
+import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Grouping;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
+import com.craftinginterpreters.lox.Expr.Literal;
+import com.craftinginterpreters.lox.Expr.Logical;
+import com.craftinginterpreters.lox.Expr.Set;
+import com.craftinginterpreters.lox.Expr.Super;
+import com.craftinginterpreters.lox.Expr.This;
+import com.craftinginterpreters.lox.Expr.Unary;
+import com.craftinginterpreters.lox.Expr.Variable;
+import com.craftinginterpreters.lox.Stmt.Block;
+import com.craftinginterpreters.lox.Stmt.Break;
+import com.craftinginterpreters.lox.Stmt.Import;
+import com.craftinginterpreters.lox.Stmt.Class;
+import com.craftinginterpreters.lox.Stmt.Expression;
+import com.craftinginterpreters.lox.Stmt.For;
+import com.craftinginterpreters.lox.Stmt.Function;
+import com.craftinginterpreters.lox.Stmt.If;
+import com.craftinginterpreters.lox.Stmt.Print;
+import com.craftinginterpreters.lox.Stmt.Return;
+import com.craftinginterpreters.lox.Stmt.Var;
+import com.craftinginterpreters.lox.Stmt.While;
+
+// Rewrites the resolved tree before it runs - constant subexpressions are folded into
+// literals, an if or while with a constant condition keeps only what can run, and the
+// statements after a return or break are dropped. With an Inliner, calls of small top-level
+// functions are inlined as well.
+//
+// Function bodies are rewritten in place, so functions stay the same nodes (the JIT counts
+// calls on the declarations). Other nodes are rebuilt when a child changed, with the
+// resolver's annotations copied over. Anything that would fail at runtime is left alone.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    // Switched off with --no-opt, to compare against the tree as parsed.
+    static boolean enabled = true;
+
+    private final Inliner inliner;
+    // The node whose runtime frame the code being optimized runs in (a Block, For, Function
+    // or AnonFun) - null at the top level, which has no frame.
+    private Object frame = null;
+
+    Optimizer(Inliner inliner) {
+        this.inliner = inliner;
+    }
+
+    // Rewrites the statements in place - the top level, or a function body.
+    void optimize(List<Stmt> statements) {
+        List<Stmt> optimized = optimized(statements);
+        if(optimized != statements) {
+            statements.clear();
+            statements.addAll(optimized);
+        }
+    }
+
+    // The statements optimized - the same list when none of them changed.
+    private List<Stmt> optimized(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        boolean changed = false;
+        for(Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if(result != statement) changed = true;
+            // removed - it could never run, or does nothing.
+            if(result == null) continue;
+            optimized.add(result);
+            // nothing after these runs.
+            if(result instanceof Return || result instanceof Break) {
+                if(optimized.size() < statements.size()) changed = true;
+                break;
+            }
+        }
+        return changed ? optimized : statements;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void optimizeAll(List<Expr> exprs) {
+        for(int i = 0; i < exprs.size(); i++) {
+            exprs.set(i, optimize(exprs.get(i)));
+        }
+    }
+
+    // A statement that has to stay in place (an if branch or a loop body) - one that was
+    // removed becomes an empty block.
+    private Stmt branch(Stmt stmt) {
+        Stmt result = optimize(stmt);
+        if(result == null) return new Block(new ArrayList<>());
+        return result;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Block stmt) {
+        Object enclosing = frame;
+        // a block of frame size 0 runs in the enclosing frame.
+        if(stmt.frameSize > 0) frame = stmt;
+        List<Stmt> statements = optimized(stmt.statements);
+        frame = enclosing;
+
+        if(statements.isEmpty()) return null;
+        if(statements == stmt.statements) return stmt;
+
+        Block block = new Block(statements);
+        block.frameSize = stmt.frameSize;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Class stmt) {
+        Object enclosing = frame;
+        for(Function method : stmt.methods) {
+            frame = method;
+            optimize(method.body);
+        }
+        frame = enclosing;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        // a constant has no effect of its own.
+        if(expression instanceof Literal) return null;
+        if(expression == stmt.expression) return stmt;
+        return new Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Function stmt) {
+        Object enclosing = frame;
+        frame = stmt;
+        optimize(stmt.body);
+        frame = enclosing;
+
+        if(inliner != null && frame == null) {
+            inliner.declare(stmt);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if(expression == stmt.expression) return stmt;
+        return new Print(expression);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Var stmt) {
+        if(stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if(initializer == stmt.initializer) return stmt;
+
+        Var var = new Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.boxed = stmt.boxed;
+        return var;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Return stmt) {
+        if(stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if(value == stmt.value) return stmt;
+
+        Return result = new Return(stmt.keyword, value);
+        // an inlined call is no longer a call.
+        result.tailCall = stmt.tailCall && (value instanceof Call || value instanceof Invoke);
+        return result;
+    }
+
+    @Override
+    public Stmt visitIfStmt(If stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if(condition instanceof Literal) {
+            // only the branch the condition picks can run.
+            if(isTruthy(((Literal)condition).value)) return optimize(stmt.thenBranch);
+            if(stmt.elseBranch == null) return null;
+            return optimize(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = branch(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : branch(stmt.elseBranch);
+        if(condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(While stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        // a loop that never runs.
+        if(condition instanceof Literal && !isTruthy(((Literal)condition).value)) return null;
+
+        Stmt body = branch(stmt.body);
+        if(condition == stmt.condition && body == stmt.body) return stmt;
+        return new While(condition, body);
+    }
+
+    @Override
+    public Stmt visitForStmt(For stmt) {
+        Object enclosing = frame;
+        if(stmt.frameSize > 0) frame = stmt;
+        Stmt initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        Expr condition = optimize(stmt.condition);
+        Expr increment = stmt.increment == null ? null : optimize(stmt.increment);
+        // a loop that never runs - only its initializer does.
+        boolean never = condition instanceof Literal && !isTruthy(((Literal)condition).value);
+        Stmt body = never ? null : branch(stmt.body);
+        frame = enclosing;
+
+        if(never) {
+            if(initializer == null) return null;
+            List<Stmt> statements = new ArrayList<>();
+            statements.add(initializer);
+            Block block = new Block(statements);
+            block.frameSize = stmt.frameSize;
+            return block;
+        }
+
+        // a constant has no effect of its own.
+        if(increment instanceof Literal) increment = null;
+        if(initializer == stmt.initializer && condition == stmt.condition
+           && increment == stmt.increment && body == stmt.body) {
+            return stmt;
+        }
+        For loop = new For(initializer, condition, increment, body);
+        loop.frameSize = stmt.frameSize;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitImportStmt(Import stmt) {
+        // the module was optimized when it was loaded.
+        return stmt;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if(left instanceof Literal && right instanceof Literal) {
+            Object value = fold(expr.operator, ((Literal)left).value, ((Literal)right).value);
+            if(value != null) return new Literal(value);
+        }
+
+        if(left == expr.left && right == expr.right) return expr;
+        return new Binary(left, expr.operator, right);
+    }
+
+    // The value of a binary operation on constants, null when it is an error to leave to
+    // the runtime (a binary operation never gives nil).
+    private Object fold(Token operator, Object left, Object right) {
+        switch(operator.type) {
+            case EQUAL_EQUAL: return isEqual(left, right);
+            case BANG_EQUAL: return !isEqual(left, right);
+            case PLUS:
+                if(left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                break;
+        }
+
+        if(!(left instanceof Double && right instanceof Double)) return null;
+        double a = (double)left;
+        double b = (double)right;
+
+        switch(operator.type) {
+            case PLUS: return a + b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return b == 0 ? null : a / b;
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+        }
+        return null;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if(right instanceof Literal) {
+            Object value = ((Literal)right).value;
+            switch(expr.operator.type) {
+                case BANG: return new Literal(!isTruthy(value));
+                case MINUS:
+                    if(value instanceof Double) return new Literal(-(double)value);
+                    break;
+            }
+        }
+
+        if(right == expr.right) return expr;
+        return new Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Logical expr) {
+        Expr left = optimize(expr.left);
+
+        if(left instanceof Literal) {
+            // the left operand alone decides whether the right one is the value.
+            boolean truthy = isTruthy(((Literal)left).value);
+            if(expr.operator.type == TokenType.OR ? truthy : !truthy) return left;
+            return optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if(left == expr.left && right == expr.right) return expr;
+        return new Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Grouping expr) {
+        // only the parser needs the parentheses.
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Assign expr) {
+        Expr value = optimize(expr.value);
+        if(value == expr.value) return expr;
+
+        Assign assign = new Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitCallExpr(Call expr) {
+        Expr callee = optimize(expr.callee);
+        optimizeAll(expr.arguments);
+        Call call = callee == expr.callee ? expr : new Call(callee, expr.paren, expr.arguments);
+
+        if(inliner != null && frame != null) {
+            Function function = inliner.inlinable(call);
+            if(function != null) {
+                return inliner.inline(function, call, reserveSlots(function.params.size()));
+            }
+        }
+        return call;
+    }
+
+    @Override
+    public Expr visitInlineExpr(Inline expr) {
+        optimizeAll(expr.call.arguments);
+        Expr body = optimize(expr.body);
+        if(body == expr.body) return expr;
+
+        Inline inline = new Inline(expr.call, body);
+        inline.slots = expr.slots;
+        return inline;
+    }
+
+    // Adds slots to the current frame - the first of them.
+    private int reserveSlots(int count) {
+        int base;
+        if(frame instanceof Block) {
+            base = ((Block)frame).frameSize;
+            ((Block)frame).frameSize += count;
+        } else if(frame instanceof For) {
+            base = ((For)frame).frameSize;
+            ((For)frame).frameSize += count;
+        } else if(frame instanceof Function) {
+            base = ((Function)frame).frameSize;
+            ((Function)frame).frameSize += count;
+        } else {
+            base = ((AnonFun)frame).frameSize;
+            ((AnonFun)frame).frameSize += count;
+        }
+        return base;
+    }
+
+    @Override
+    public Expr visitInvokeExpr(Invoke expr) {
+        Expr object = optimize(expr.object);
+        optimizeAll(expr.arguments);
+        if(object == expr.object) return expr;
+        return new Invoke(object, expr.name, expr.paren, expr.arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Get expr) {
+        Expr object = optimize(expr.object);
+        if(object == expr.object) return expr;
+        return new Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if(object == expr.object && value == expr.value) return expr;
+        return new Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitAnonFunExpr(AnonFun expr) {
+        Object enclosing = frame;
+        frame = expr;
+        optimize(expr.body);
+        frame = enclosing;
+        return expr;
+    }
+
+    private boolean isTruthy(Object object) {
+        if(object == null) return false;
+        if(object instanceof Boolean) return (boolean)object;
+        return true;
+    }
+
+    private boolean isEqual(Object a, Object b) {
+        if(a == null && b == null) return true;
+        if(a == null) return false;
+        return a.equals(b);
+    }
+}
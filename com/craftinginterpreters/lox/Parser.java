@@ -1,7 +1,6 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.TokenType.*;
@@ -9,13 +8,17 @@ import static com.craftinginterpreters.lox.TokenType.*;
 public class Parser {
     public static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    // tokens are scanned as the parser gets to them - it only keeps the current token and the
+    // one before it, all the lookahead the grammar needs.
+    private final Scanner scanner;
     private static final int maxArgListLength = 255;
-    private int current = 0;
+    private Token current;
+    private Token previous;
     private boolean repl;
 
-    Parser(List<Token> tokens, boolean repl) {
-        this.tokens = tokens;
+    Parser(Scanner scanner, boolean repl) {
+        this.scanner = scanner;
+        this.current = scanner.nextToken();
         this.repl = repl;
     }
 
@@ -32,6 +35,7 @@ public class Parser {
             if(match(CLASS)) return classDeclaration();
             if(match(FUN)) return funDeclaration("function");
             if(match(VAR)) return varDeclaration();
+            if(match(IMPORT)) return importDeclaration();
             return statement();
         } catch (ParseError e) {
             synchronize();
@@ -116,8 +120,8 @@ public class Parser {
 
         Expr increment = null;
 
-        // if there is no immediate semicolon, then parse the increment/last clause.
-        if(!check(SEMICOLON)) {
+        // if there is no immediate right paren, then parse the increment/last clause.
+        if(!check(RIGHT_PAREN)) {
             increment = expression();
         }
 
@@ -125,29 +129,12 @@ public class Parser {
 
         Stmt forBody = statement();
 
-        // Fuse increment and forBody.
-        if(increment != null) {
-            forBody = new Stmt.Block(
-                                     Arrays.asList(
-                                                   forBody,
-                                                   new Stmt.Expression(increment)));
-        }
-
         // Normalize condition expression.
         if(condition == null) {
             condition = new Expr.Literal(true);
         }
 
-        Stmt whileBody = new Stmt.While(condition, forBody);
-        
-        if(initializer != null) {
-            return new Stmt.Block(
-                                  Arrays.asList(
-                                                initializer,
-                                                whileBody));
-        } else {
-            return whileBody;
-        }
+        return new Stmt.For(initializer, condition, increment, forBody);
     }
     
     private Stmt ifStatement() {
@@ -188,6 +175,13 @@ public class Parser {
         return new Stmt.Var(name, initializer);
     }
 
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+        consume(SEMICOLON, "Expect ';' after import.");
+        return new Stmt.Import(keyword, (String)path.literal);
+    }
+
     private Stmt.Function funDeclaration(String kind) {
         Token name = consume(IDENTIFIER, String.format("Expect %s name.", kind));
         consume(LEFT_PAREN, String.format("Expect '(' after %s name.", kind));
@@ -331,7 +325,7 @@ public class Parser {
         while(true) {
             if(match(LEFT_PAREN)) {
                 expr = finishCall(expr);
-            } if(match(DOT)) {
+            } else if(match(DOT)) {
                 Token name = consume(IDENTIFIER, "Expect a propertry name after '.'.");
                 expr = new Expr.Get(expr, name);
             }else {
@@ -392,6 +386,11 @@ public class Parser {
         }
 
         Token paran = consume(RIGHT_PAREN, "Expect ')' after arguments");
+        if(callee instanceof Expr.Get) {
+            // obj.method(...) - invoked in one go, without binding the method first.
+            Expr.Get get = (Expr.Get)callee;
+            return new Expr.Invoke(get.object, get.name, paran, arguments);
+        }
         return new Expr.Call(callee, paran, arguments);
     }
 
@@ -431,7 +430,10 @@ public class Parser {
     }
     
     private Token advance() {
-        if(!isAtEnd()) current++;
+        if(!isAtEnd()) {
+            previous = current;
+            current = scanner.nextToken();
+        }
         return previous();
     }
 
@@ -440,11 +442,11 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private Token consume(TokenType token, String message) {
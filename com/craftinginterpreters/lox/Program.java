@@ -0,0 +1,83 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// A script compiled for embedding: scanned, parsed, resolved, linked to its imports and
+// optimized once, then run any number of times - from any number of threads at once. Each run
+// has its own interpreter (globals, frames, output) and its own errors, and nothing of a run
+// outlives it.
+//
+// The compiled tree is not changed by a run, apart from what the runtime caches on it (node
+// specializations, inline caches, call counts and JIT-compiled bodies), which is safe to share.
+// Compile errors are reported as a ScriptError by compile(), instead of on stderr, and so is
+// the runtime error that stops a run.
+//
+// Calls of small functions are inlined, as for a script file: a run starts from globals of its
+// own, so the functions the program declares are those it calls. A program run on globals that
+// outlive it - those of a script engine, which other scripts and the host change between
+// evaluations - is compiled without inlining (see execute()).
+public final class Program {
+    private final List<Stmt> statements;
+
+    private Program(List<Stmt> statements) {
+        this.statements = statements;
+    }
+
+    // Compiles source - its imports are found from the working directory.
+    public static Program compile(String source) throws ScriptError {
+        return compile(source, Paths.get("").toAbsolutePath(), true);
+    }
+
+    // Compiles the script file - its imports are found from its directory.
+    public static Program compile(Path script) throws IOException, ScriptError {
+        return compile(MappedSource.map(script), script.toAbsolutePath().getParent(), true);
+    }
+
+    // Compiles source to run on globals that outlive the program (see execute()).
+    static Program compileShared(String source) throws ScriptError {
+        return compile(source, Paths.get("").toAbsolutePath(), false);
+    }
+
+    private static Program compile(CharSequence source, Path directory, boolean inline) throws ScriptError {
+        Reporter reporter = new Reporter(null);
+        Reporter previous = Lox.reportTo(reporter);
+        try {
+            Set<String> assignedGlobals = new HashSet<>();
+            List<Stmt> statements = Lox.compile(source, false, assignedGlobals);
+            if(statements == null || !Module.link(statements, directory, assignedGlobals)) {
+                throw new ScriptError(reporter.messages(), reporter.line);
+            }
+            Lox.optimize(statements, inline, assignedGlobals);
+            return new Program(statements);
+        } finally {
+            Lox.reportTo(previous);
+        }
+    }
+
+    public void run() throws ScriptError {
+        run(System.out);
+    }
+
+    // Runs the program with print writing to out.
+    public void run(PrintStream out) throws ScriptError {
+        try {
+            execute(new Interpreter(new PrintWriter(out, true)));
+        } catch(RuntimeError error) {
+            throw new ScriptError(error.getMessage(), error.token.line);
+        }
+    }
+
+    // Runs the program with the interpreter's globals, leaving a runtime error to the caller.
+    // Globals defined before the run, or redefined after it, are only seen by a program of
+    // compileShared() - an inlined call would keep the function of compile time.
+    void execute(Interpreter interpreter) {
+        interpreter.run(statements);
+    }
+}
@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+// Where the errors of compiling and running a program go. The front end and the runtime report
+// them with Lox.error() and Lox.runtimeError(), which hand them to the reporter of the thread -
+// so programs compiled and run on different threads at once (see Program) each have their own.
+// The command line's prints them on stderr.
+final class Reporter {
+    // null when the messages are kept instead, for the caller to have.
+    private final PrintStream err;
+    private final StringBuilder messages = new StringBuilder();
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+    // the line of the first error.
+    int line = -1;
+
+    Reporter(PrintStream err) {
+        this.err = err;
+    }
+
+    void error(int line, String message) {
+        if(!hadError && !hadRuntimeError) this.line = line;
+        hadError = true;
+        print(message);
+    }
+
+    void runtimeError(int line, String message) {
+        if(!hadError && !hadRuntimeError) this.line = line;
+        hadRuntimeError = true;
+        print(message);
+    }
+
+    // The messages reported, one per line - when they are kept.
+    String messages() {
+        return messages.toString();
+    }
+
+    private void print(String message) {
+        if(err != null) {
+            err.println(message);
+            return;
+        }
+        if(messages.length() > 0) messages.append('\n');
+        messages.append(message);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Stack;
 
@@ -17,12 +18,16 @@ import com.craftinginterpreters.lox.Expr.Logical;
 import com.craftinginterpreters.lox.Expr.Unary;
 import com.craftinginterpreters.lox.Expr.Variable;
 import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
 import com.craftinginterpreters.lox.Expr.Set;
 import com.craftinginterpreters.lox.Expr.This;
 import com.craftinginterpreters.lox.Expr.Super;
 import com.craftinginterpreters.lox.Stmt.Block;
 import com.craftinginterpreters.lox.Stmt.Break;
+import com.craftinginterpreters.lox.Stmt.Import;
 import com.craftinginterpreters.lox.Stmt.Expression;
+import com.craftinginterpreters.lox.Stmt.For;
 import com.craftinginterpreters.lox.Stmt.Function;
 import com.craftinginterpreters.lox.Stmt.Class;
 import com.craftinginterpreters.lox.Stmt.If;
@@ -35,16 +40,94 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // Resolved locations: a depth >= 0 is the number of frames to walk out to the local's frame,
+    // GLOBAL leaves the variable to the named global scope and CAPTURED means the slot is an
+    // index in the running function's captured variables.
+    static final int GLOBAL = -1;
+    static final int CAPTURED = -2;
+
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    // the runtime frame of each of the scopes.
+    private final Stack<Frame> frames = new Stack<>();
 
     private ClassType currentClass = ClassType.NONE;
     private FunctionType currentFunction = FunctionType.NONE;
-    
-    public Resolver(Interpreter interpreter) {
-	this.interpreter = interpreter;
+    private FunctionScope currentFunctionScope = new FunctionScope(null, 0);
+
+    // Globals assigned anywhere in the program - the inliner leaves the functions bound to them.
+    final java.util.Set<String> assignedGlobals = new HashSet<>();
+
+    // A local binding in a scope - the slot it occupies in the scope's runtime frame.
+    private static class Local {
+        final int slot;
+        // the Var, Function or Class statement declaring it - null for params and implicit ones.
+        final Stmt declaration;
+        boolean defined = false;
+        boolean captured = false;
+        boolean capturedEarly = false;
+        boolean assigned = false;
+
+        Local(int slot, Stmt declaration) {
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+
+        // A captured local needs a shared cell only if a closure could observe a later store:
+        // it is assigned somewhere, or it was captured before its definition completed.
+        boolean isBoxed() {
+            return captured && (assigned || capturedEarly);
+        }
+    }
+
+    // A function being resolved - its scopes start at scopeBase, and the variables of
+    // enclosing functions it refers to are captured (in order) into its closure.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final int scopeBase;
+        final Map<Local, Integer> captureIndexes = new HashMap<>();
+        final List<Location> captures = new ArrayList<>();
+        int frameSize;
+        int[] boxedParams;
+        // loops of this function the resolver is in - a break has to be inside one.
+        int loopDepth;
+
+        FunctionScope(FunctionScope enclosing, int scopeBase) {
+            this.enclosing = enclosing;
+            this.scopeBase = scopeBase;
+        }
     }
 
+    // A runtime frame - a function's, a top-level block's or the one holding "super". A block
+    // inside a frame creates no Environment of its own: its locals take the frame's next free
+    // slots, which a later sibling block takes again once the block has ended.
+    private static class Frame {
+        // the frames it is in, at runtime.
+        final int depth;
+        int next = 0;
+        int size = 0;
+
+        Frame(int depth) {
+            this.depth = depth;
+        }
+
+        int allocate() {
+            size = Math.max(size, next + 1);
+            return next++;
+        }
+    }
+
+    private static class Location {
+        final int depth;
+        final int slot;
+
+        Location(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+    }
+
+    private static final Location GLOBAL_LOCATION = new Location(GLOBAL, -1);
+
     private enum ClassType {
         NONE,
         CLASS,
@@ -74,9 +157,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     
     @Override
     public Void visitBlockStmt(Block stmt) {
-        beginScope();
+        int start = beginBlockScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.frameSize = endBlockScope(start);
         return null;
     }
 
@@ -88,7 +171,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         // define immediately as it should be valid (to support recursion).
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -100,7 +183,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
         
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         if(stmt.superClass != null
@@ -115,14 +198,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         // Wrap a new environment scope for super class.
         if(stmt.superClass != null) {
-            beginScope();
-            scopes.peek().put("super", true /* defined */);
+            beginScope(newFrame());
+            defineImplicit("super");
         }
         
-        // Create a new environment scope and put "this" in that.
-        beginScope();
-        scopes.peek().put("this", true /* defined */);
-
+        // "this" is not a scope of its own - it is the first slot of every method's frame.
         for(Stmt.Function method : stmt.methods) {
             FunctionType funcType = FunctionType.METHOD;
             if(method.name.lexeme.equals("init")) {
@@ -131,9 +211,6 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, funcType);
         }
 
-        // the end of the scope for "this" 
-        endScope();
-
         // the end of the scope for super class.
         if(stmt.superClass != null) {
             endScope();
@@ -151,7 +228,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         if(stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -169,6 +246,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
         if(stmt.value != null) {
             resolve(stmt.value);
+            // the call is the last thing the function does - it can be made in place of the caller.
+            stmt.tailCall = stmt.value instanceof Call || stmt.value instanceof Invoke;
         }
         return null;
     }
@@ -186,12 +265,40 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitWhileStmt(While stmt) {
         resolve(stmt.condition);
+        currentFunctionScope.loopDepth++;
         resolve(stmt.body);
+        currentFunctionScope.loopDepth--;
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(For stmt) {
+        // the loop's variable is in a scope around the whole loop.
+        int start = beginBlockScope();
+        if(stmt.initializer != null) resolve(stmt.initializer);
+        resolve(stmt.condition);
+        if(stmt.increment != null) resolve(stmt.increment);
+        currentFunctionScope.loopDepth++;
+        resolve(stmt.body);
+        currentFunctionScope.loopDepth--;
+        stmt.frameSize = endBlockScope(start);
         return null;
     }
 
     @Override
     public Void visitBreakStmt(Break stmt) {
+        if(currentFunctionScope.loopDepth == 0) {
+            Lox.error(stmt.token, "Encountered 'break' without enclosing loop.");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Import stmt) {
+        // a module defines globals, so it is run where they are declared.
+        if(!scopes.isEmpty()) {
+            Lox.error(stmt.keyword, "Can only import at the top level.");
+        }
         return null;
     }
 
@@ -214,6 +321,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitInvokeExpr(Invoke expr) {
+        resolve(expr.object);
+
+        for(Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+
+        return null;
+    }
+
     @Override
     public Void visitGetExpr(Get expr) {
         resolve(expr.object);
@@ -234,7 +352,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
         }
         
-        resolveLocal(expr, expr.keyword);
+        Location location = resolveLocal(expr.keyword.lexeme);
+        expr.depth = location.depth;
+        expr.slot = location.slot;
         return null;
     }
 
@@ -246,7 +366,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Cannot use 'super' in a class without a superclass.");
         }
         
-        resolveLocal(expr, expr.keyword);
+        Location location = resolveLocal("super");
+        expr.depth = location.depth;
+        expr.slot = location.slot;
+        // the method is bound to the current "this".
+        location = resolveLocal("this");
+        expr.thisDepth = location.depth;
+        expr.thisSlot = location.slot;
         return null;
     }
     
@@ -277,27 +403,23 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitVariableExpr(Variable expr) {
         if(!scopes.isEmpty()
-           && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+           && scopes.peek().containsKey(expr.name.lexeme)
+           && !scopes.peek().get(expr.name.lexeme).defined) {
             Lox.error(expr.name, "Cannot refer local variable in its own initializer.");
         }
-        resolveLocal(expr, expr.name);
+        Location location = resolveLocal(expr.name.lexeme);
+        expr.depth = location.depth;
+        expr.slot = location.slot;
         return null;
     }
 
     @Override
     public Void visitAnonFunExpr(AnonFun expr) {
-        FunctionType enclosingFunctionType = currentFunction;
-        currentFunction = FunctionType.FUNCTION;
-        // Entering the anonymous function starts a new scope.
-        beginScope();
-        for(Token param : expr.params) {
-            // define all params - these will be resolve/bound at the usages sites inside function.body
-            declare(param);
-            define(param);
-        }
-        resolve(expr.body);
-        endScope();
-        currentFunction = enclosingFunctionType;
+        FunctionScope function = resolveFunction(expr.params, expr.body, FunctionType.FUNCTION);
+        expr.frameSize = function.frameSize;
+        expr.boxedParams = function.boxedParams;
+        expr.captureDepths = captureDepths(function);
+        expr.captureSlots = captureSlots(function);
         return null;
     }
 
@@ -306,57 +428,177 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         // first resolve the assignment expression.
         resolve(expr.value);
         // then bind the scope of the local variable.
-        resolveLocal(expr, expr.name);
+        Location location = resolveLocal(expr.name.lexeme);
+        expr.depth = location.depth;
+        expr.slot = location.slot;
+        Local local = findLocal(expr.name.lexeme);
+        if(local != null) local.assigned = true;
+        if(location.depth == GLOBAL) assignedGlobals.add(expr.name.lexeme);
         return null;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    @Override
+    public Void visitInlineExpr(Inline expr) {
+        // inlining comes after resolution - only the call is in the source.
+        resolve(expr.call);
+        return null;
+    }
+
+    private void beginScope(Frame frame) {
+        scopes.push(new HashMap<String, Local>());
+        frames.push(frame);
+    }
+
+    // The scope of a block (or of a for loop) - only one outside of any frame (at the top
+    // level) gets a frame of its own. Returns the slot its locals start from.
+    private int beginBlockScope() {
+        Frame frame = frames.isEmpty() ? new Frame(0) : frames.peek();
+        beginScope(frame);
+        return frame.next;
+    }
+
+    // Returns the size of the block's own frame - 0 runs the block in the enclosing one.
+    private int endBlockScope(int start) {
+        Frame frame = frames.peek();
+        endScope();
+        frame.next = start;
+        return frames.isEmpty() ? frame.size : 0;
+    }
+
+    private Frame newFrame() {
+        return new Frame(frames.isEmpty() ? 0 : frames.peek().depth + 1);
     }
 
+    // The scope's locals are complete now, so this is where the declarations that need a
+    // shared cell are marked.
     private void endScope() {
-        scopes.pop();
+        Map<String, Local> scope = scopes.pop();
+        frames.pop();
+        for(Local local : scope.values()) {
+            if(!local.isBoxed()) continue;
+            if(local.declaration instanceof Var) {
+                ((Var)local.declaration).boxed = true;
+            } else if(local.declaration instanceof Function) {
+                ((Function)local.declaration).boxed = true;
+            } else if(local.declaration instanceof Class) {
+                ((Class)local.declaration).boxed = true;
+            }
+        }
     }
 
-    private void declare(Token name) {
+    // Returns the slot assigned to the declaration (-1 for globals, which stay named).
+    private int declare(Token name, Stmt declaration) {
         // skip for global level declarations.
-        if(scopes.isEmpty()) return;
+        if(scopes.isEmpty()) return -1;
         if(scopes.peek().containsKey(name.lexeme)) {
             Lox.error(name, "Variable re-declaration in the same scope.");
         }
-        scopes.peek().put(name.lexeme, false /* not defined yet */);
+        // slots are handed out in declaration order, which is also the runtime definition order.
+        Local local = new Local(frames.peek().allocate(), declaration);
+        scopes.peek().put(name.lexeme, local /* not defined yet */);
+        return local.slot;
     }
 
     private void define(Token name) {
         if(scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true /* defined now */);
+        scopes.peek().get(name.lexeme).defined = true;
+    }
+
+    // Declares and defines a binding the interpreter introduces itself ("this" and "super").
+    private void defineImplicit(String name) {
+        Local local = new Local(frames.peek().allocate(), null);
+        local.defined = true;
+        scopes.peek().put(name, local);
     }
 
-    // Important method: defines a local variable binding to its scope.
-    private void resolveLocal(Expr expr, Token name) {
+    private Local findLocal(String name) {
+        for(int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).get(name);
+            if(local != null) return local;
+        }
+        return null;
+    }
+
+    // Important method: finds where a variable use is bound - a frame slot of the current
+    // function, one of its captured variables, or (when not found in any scope) a global.
+    private Location resolveLocal(String name) {
         // find name from the most inner scope
         for(int i = scopes.size() - 1; i >= 0; i--) {
-            if(scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr /* variable usages node */,
-                                    scopes.size() - 1 - i /* steps outside in the outer scopes */);
-                return;
+            Local local = scopes.get(i).get(name);
+            if(local != null) {
+                return locate(currentFunctionScope, scopes.size() - 1, i, local);
             }
         }
+        return GLOBAL_LOCATION;
+    }
+
+    // Location of a local declared in scopes[scope], as seen from function when its innermost
+    // scope is scopes[top]. A local of an enclosing function is added to the function's
+    // captures - and to those of every function in between, which hand it down at creation.
+    private Location locate(FunctionScope function, int top, int scope, Local local) {
+        if(scope >= function.scopeBase) {
+            return new Location(frames.get(top).depth - frames.get(scope).depth, local.slot);
+        }
+
+        local.captured = true;
+        if(!local.defined) local.capturedEarly = true;
+
+        Integer index = function.captureIndexes.get(local);
+        if(index == null) {
+            // the closure is created in the enclosing function, just outside this one's scopes.
+            Location from = locate(function.enclosing, function.scopeBase - 1, scope, local);
+            index = function.captures.size();
+            function.captures.add(from);
+            function.captureIndexes.put(local, index);
+        }
+        return new Location(CAPTURED, index);
     }
 
     private void resolveFunction(Function function, FunctionType type) {
+        FunctionScope scope = resolveFunction(function.params, function.body, type);
+        function.frameSize = scope.frameSize;
+        function.boxedParams = scope.boxedParams;
+        function.captureDepths = captureDepths(scope);
+        function.captureSlots = captureSlots(scope);
+    }
+
+    private FunctionScope resolveFunction(List<Token> params, List<Stmt> body, FunctionType type) {
         FunctionType enclosingFunctionType = currentFunction;
         currentFunction = type;
-        // Entering the function starts a new scope.
-        beginScope();
-        for(Token param : function.params) {
+        FunctionScope function = new FunctionScope(currentFunctionScope, scopes.size());
+        currentFunctionScope = function;
+        // Entering the function starts a new scope, in a frame of its own.
+        Frame frame = newFrame();
+        beginScope(frame);
+        if(type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            defineImplicit("this");
+        }
+        for(Token param : params) {
             // define all params - these will be resolve/bound at the usages sites inside function.body
-            declare(param);
+            declare(param, null);
             define(param);
         }
-        resolve(function.body);
+        resolve(body);
+
+        List<Integer> boxed = new ArrayList<>();
+        for(Token param : params) {
+            Local local = scopes.peek().get(param.lexeme);
+            if(local.isBoxed()) boxed.add(local.slot);
+        }
+        function.boxedParams = boxed.stream().mapToInt(Integer::intValue).toArray();
         endScope();
+        function.frameSize = frame.size;
+
+        currentFunctionScope = function.enclosing;
         currentFunction = enclosingFunctionType;
+        return function;
+    }
+
+    private static int[] captureDepths(FunctionScope function) {
+        return function.captures.stream().mapToInt(location -> location.depth).toArray();
     }
-}
 
+    private static int[] captureSlots(FunctionScope function) {
+        return function.captures.stream().mapToInt(location -> location.slot).toArray();
+    }
+}
@@ -0,0 +1,66 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+
+// A Lox string made by a concatenation that gave a long string. Its text is the first length
+// characters of a builder, which later concatenations with the rope on the left append to in
+// place while nothing else has been appended after it - so building a string in a loop costs
+// amortized constant time per piece instead of a copy of the whole string. The text is made
+// a String only when it is needed: printed, compared, or appended on the right.
+//
+// Ropes are only an implementation of Lox strings: wherever a String is a value, a Rope can
+// be too (see isString), and one equals the String of the same text (see Interpreter.isEqual).
+//
+// A rope can be reached from several threads - the globals of an engine's bindings, or a value
+// a host passes to concurrent runs - so the ropes of one builder take turns on it: checking
+// that nothing follows this rope and appending happen together under the builder's lock.
+final class Rope implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // shorter results are plain Strings - copying them is cheaper than starting a builder.
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String text = null;
+
+    private Rope(StringBuilder builder) {
+        this.builder = builder;
+        this.length = builder.length();
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // left + right, both strings.
+    static Object concat(Object left, Object right) {
+        if(left instanceof Rope) return ((Rope)left).append(right.toString());
+
+        String text = (String)left;
+        String appended = right.toString();
+        if(text.length() + appended.length() < MIN_LENGTH) return text + appended;
+        return new Rope(new StringBuilder(text).append(appended));
+    }
+
+    private Rope append(String appended) {
+        StringBuilder target;
+        synchronized(builder) {
+            if(builder.length() == length) return new Rope(builder.append(appended));
+            // another rope already extends this one - this one gets a builder of its own.
+            target = new StringBuilder(length + appended.length());
+            target.append(builder, 0, length);
+        }
+        return new Rope(target.append(appended));
+    }
+
+    @Override
+    public String toString() {
+        if(text == null) {
+            synchronized(builder) {
+                text = builder.substring(0, length);
+            }
+        }
+        return text;
+    }
+}
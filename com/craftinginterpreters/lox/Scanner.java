@@ -1,64 +1,80 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
+// Scans the source a token at a time, as the parser asks for them (nextToken) - the source can
+// be any CharSequence, such as a mapped file (see MappedSource).
 class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final CharSequence source;
+    // the identifiers scanned so far.
+    private final Symbols symbols = new Symbols();
+    // the token scanToken() found, if any.
+    private Token scanned = null;
 
-    private static final Map<String, TokenType> keywords;
+    // The lexemes of the tokens that are always spelled the same (by type ordinal) - shared by
+    // all such tokens instead of copied out of the source.
+    private static final String[] spellings = new String[TokenType.values().length];
 
     static
     {
-        keywords = new HashMap<>();
-        keywords.put("and", TokenType.AND);
-        keywords.put("or", TokenType.OR);
-        
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("super", TokenType.SUPER);
-        keywords.put("this", TokenType.THIS);
-
-        keywords.put("if", TokenType.IF);
-        keywords.put("else", TokenType.ELSE);
-       
-        keywords.put("fun", TokenType.FUN);
-        
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("nil", TokenType.NIL);
-        
-        keywords.put("while", TokenType.WHILE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("break", TokenType.BREAK);
-
-        keywords.put("var", TokenType.VAR);
-        keywords.put("return", TokenType.RETURN);
+        spell(TokenType.LEFT_PAREN, "(");
+        spell(TokenType.RIGHT_PAREN, ")");
+        spell(TokenType.LEFT_BRACE, "{");
+        spell(TokenType.RIGHT_BRACE, "}");
+        spell(TokenType.COMMA, ",");
+        spell(TokenType.DOT, ".");
+        spell(TokenType.MINUS, "-");
+        spell(TokenType.PLUS, "+");
+        spell(TokenType.COLON, ":");
+        spell(TokenType.SEMICOLON, ";");
+        spell(TokenType.SLASH, "/");
+        spell(TokenType.STAR, "*");
+
+        spell(TokenType.BANG, "!");
+        spell(TokenType.BANG_EQUAL, "!=");
+        spell(TokenType.EQUAL, "=");
+        spell(TokenType.EQUAL_EQUAL, "==");
+        spell(TokenType.GREATER, ">");
+        spell(TokenType.GREATER_EQUAL, ">=");
+        spell(TokenType.LESS, "<");
+        spell(TokenType.LESS_EQUAL, "<=");
+
+        // keywords are spelled as their type's name.
+        for(int i = TokenType.AND.ordinal(); i <= TokenType.IMPORT.ordinal(); i++)
+        {
+            TokenType keyword = TokenType.values()[i];
+            spell(keyword, keyword.name().toLowerCase().intern());
+        }
+    }
 
-        keywords.put("print", TokenType.PRINT);
+    private static void spell(TokenType type, String lexeme)
+    {
+        spellings[type.ordinal()] = lexeme;
     }
 
     private int start;
     private int current;
     private int line;
 
-    Scanner(String source)
+    Scanner(CharSequence source)
     {
         this.source = source;
     }
 
-    List<Token> scanTokens()
+    // The next token of the source - EOF once it is exhausted.
+    Token nextToken()
     {
-        while(!isAtEnd())
+        while(scanned == null)
         {
+            if(isAtEnd())
+            {
+                return new Token(TokenType.EOF, "", null, line);
+            }
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        Token token = scanned;
+        scanned = null;
+        return token;
     }
 
     private void scanToken()
@@ -153,13 +169,18 @@ class Scanner {
 
     private void addToken(TokenType type)
     {
-        addToken(type, null);
+        addToken(type, spellings[type.ordinal()], null);
     }
 
     private void addToken(TokenType type, Object literal)
     {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        String text = source.subSequence(start, current).toString();
+        addToken(type, text, literal);
+    }
+
+    private void addToken(TokenType type, String text, Object literal)
+    {
+        scanned = new Token(type, text, literal, line);
     }
 
     private boolean match(char expected)
@@ -199,7 +220,7 @@ class Scanner {
         advance();
 
         // Extract the string
-        String value = source.substring(start + 1, current - 1);
+        String value = source.subSequence(start + 1, current - 1).toString();
         addToken(TokenType.STRING, value);
     }
 
@@ -225,7 +246,8 @@ class Scanner {
             }
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        String text = source.subSequence(start, current).toString();
+        addToken(TokenType.NUMBER, text, Double.parseDouble(text));
     }
 
     private char peekNext()
@@ -258,13 +280,77 @@ class Scanner {
             advance();
         }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
+        TokenType type = identifierType();
+        if(type != TokenType.IDENTIFIER)
+        {
+            addToken(type);
+            return;
+        }
+
+        // names are interned - see Symbols.
+        addToken(type, symbols.intern(source, start, current), null);
+    }
+
+    // The keyword source[start, current) is, or IDENTIFIER - matched on the source characters,
+    // as looking it up would take a String of them.
+    private TokenType identifierType()
+    {
+        switch(source.charAt(start))
+        {
+            case 'a': return keyword(1, "nd", TokenType.AND);
+            case 'b': return keyword(1, "reak", TokenType.BREAK);
+            case 'c': return keyword(1, "lass", TokenType.CLASS);
+            case 'e': return keyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if(current - start > 1)
+                {
+                    switch(source.charAt(start + 1))
+                    {
+                        case 'a': return keyword(2, "lse", TokenType.FALSE);
+                        case 'o': return keyword(2, "r", TokenType.FOR);
+                        case 'u': return keyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i':
+                if(current - start > 1)
+                {
+                    switch(source.charAt(start + 1))
+                    {
+                        case 'f': return keyword(2, "", TokenType.IF);
+                        case 'm': return keyword(2, "port", TokenType.IMPORT);
+                    }
+                }
+                break;
+            case 'n': return keyword(1, "il", TokenType.NIL);
+            case 'o': return keyword(1, "r", TokenType.OR);
+            case 'p': return keyword(1, "rint", TokenType.PRINT);
+            case 'r': return keyword(1, "eturn", TokenType.RETURN);
+            case 's': return keyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if(current - start > 1)
+                {
+                    switch(source.charAt(start + 1))
+                    {
+                        case 'h': return keyword(2, "is", TokenType.THIS);
+                        case 'r': return keyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", TokenType.VAR);
+            case 'w': return keyword(1, "hile", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
 
-        if(type == null)
+    // type when the rest of the identifier, from offset on, is rest.
+    private TokenType keyword(int offset, String rest, TokenType type)
+    {
+        if(current - start != offset + rest.length()) return TokenType.IDENTIFIER;
+        for(int i = 0; i < rest.length(); i++)
         {
-            type = TokenType.IDENTIFIER;
+            if(source.charAt(start + offset + i) != rest.charAt(i)) return TokenType.IDENTIFIER;
         }
-        addToken(type);
+        return type;
     }
 }
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+// The errors compiling a Program, or the runtime error that stopped a run of it.
+public class ScriptError extends Exception {
+    private final int line;
+
+    ScriptError(String message, int line) {
+        super(message);
+        this.line = line;
+    }
+
+    // The line of the (first) error.
+    public int getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,87 @@
+package com.craftinginterpreters.lox;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The field layout shared by the instances that had the same fields added in the same order -
+// a node in a transition tree, rooted at the empty shape of a class declaration. Instances keep
+// their field values in an Object[] indexed by the shape's slots, and their class's methods in
+// a table indexed by the method slots of the tree, so a shape decides where a property is
+// found (see InlineCache).
+//
+// The tree belongs to the class statement, not to the classes it creates: the statement run
+// again - in another call of the function declaring the class, or another run of a Program -
+// gives classes of the same shapes, and the access sites keep their entries. A subclass's tree
+// also depends on the layout of its superclass, which the statement picks at run time.
+class Shape implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new ConcurrentHashMap<>();
+    // number of fields - the slot of the next field added.
+    final int size;
+    // slots of the methods in the method tables of the classes - shared by the tree.
+    private final Map<String, Integer> methods;
+    // the roots of the subclasses of a root, per class statement.
+    private final Map<Stmt.Class, Shape> subclasses;
+
+    // The root of the classes of declaration, a subclass of those of superRoot (null for none).
+    private Shape(Shape superRoot, Stmt.Class declaration) {
+        this.slots = new HashMap<>();
+        this.size = 0;
+        this.methods = superRoot == null ? new HashMap<>() : new HashMap<>(superRoot.methods);
+        // own methods override the inherited ones in their slots.
+        for(Stmt.Function method : declaration.methods) {
+            methods.putIfAbsent(method.name.lexeme, methods.size());
+        }
+        this.subclasses = new ConcurrentHashMap<>();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.slots = new HashMap<>(parent.slots);
+        this.slots.put(name, parent.size);
+        this.size = parent.size + 1;
+        this.methods = parent.methods;
+        this.subclasses = null;
+    }
+
+    // The root shape of the classes declaration creates with the superclass (null for none).
+    static Shape root(Stmt.Class declaration, LoxClass superClass) {
+        if(superClass != null) {
+            return superClass.rootShape.subclasses.computeIfAbsent(declaration,
+                                                                   d -> new Shape(superClass.rootShape, d));
+        }
+        synchronized(declaration) {
+            if(declaration.rootShape == null) declaration.rootShape = new Shape(null, declaration);
+            return declaration.rootShape;
+        }
+    }
+
+    // Slot of the field, -1 when the shape does not have it.
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    Map<String, Integer> slots() {
+        return slots;
+    }
+
+    // Slot of the method in the method tables, -1 when the classes do not have it.
+    int method(String name) {
+        Integer slot = methods.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // number of methods - the size of the method tables.
+    int methodCount() {
+        return methods.size();
+    }
+
+    // The shape after adding a field - shared with every instance that adds it here too.
+    Shape add(String name) {
+        return transitions.computeIfAbsent(name, field -> new Shape(this, field));
+    }
+}
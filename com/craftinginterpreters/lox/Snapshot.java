@@ -0,0 +1,192 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// The globals of the interpreter after a program ran (--save-snapshot), loaded into a later
+// interpreter (--snapshot) in place of running the program again - for a prelude that defines
+// classes and functions for the scripts run after it.
+//
+// A snapshot is the graph of the values the globals hold - functions with their declarations
+// and captures, classes, instances, cells - written with Java serialization, which keeps the
+// objects shared between several values (a cell two closures captured, the class of many
+// instances) shared, and the cycles in the graph. Natives are written by name and come back
+// as the natives of the loading interpreter. JIT-compiled bodies are left out, the functions
+// are interpreted again until they get hot in the new run. A snapshot is readable by the
+// builds whose classes have the serialVersionUIDs of those that wrote it - a class changing
+// its fields bumps its own.
+//
+// Reading a snapshot only creates objects of the runtime's classes and of the few JDK ones its
+// graph holds (see ALLOWED): a file of other serialized objects is rejected, not run.
+final class Snapshot {
+
+    static Path load = null;
+    static Path save = null;
+
+    private static final int MAGIC = 0x4a4c5853;  // "JLXS"
+    // Serialization recurses through the graph, a frame per object on the way - a long chain
+    // of instances (a linked list) would overflow the stack of the main thread.
+    private static final long STACK_SIZE = 512L * 1024 * 1024;
+
+    private static final String RUNTIME = "com.craftinginterpreters.lox.";
+    // the JDK classes of the graph besides the runtime's: values, the builders of ropes, the
+    // lists and maps of the trees (Object for their arrays), and what a ConcurrentHashMap (of
+    // the shapes) writes itself as.
+    private static final Set<String> ALLOWED = Set.of(
+        "java.lang.Object", "java.lang.String", "java.lang.Boolean", "java.lang.Double",
+        "java.lang.Integer", "java.lang.Number", "java.lang.Enum",
+        "java.lang.StringBuilder", "java.lang.AbstractStringBuilder",
+        "java.util.ArrayList", "java.util.HashMap", "java.util.Map$Entry",
+        "java.util.concurrent.ConcurrentHashMap", "java.util.concurrent.ConcurrentHashMap$Segment",
+        "java.util.concurrent.locks.ReentrantLock", "java.util.concurrent.locks.ReentrantLock$Sync",
+        "java.util.concurrent.locks.ReentrantLock$NonfairSync",
+        "java.util.concurrent.locks.AbstractQueuedSynchronizer",
+        "java.util.concurrent.locks.AbstractOwnableSynchronizer");
+
+    private Snapshot() {}
+
+    // Defines the globals of the snapshot in globals, replacing those of the same name.
+    static void load(Path path, Environment globals) throws IOException {
+        onLargeStack(() -> read(path, globals));
+    }
+
+    static void save(Path path, Environment globals) throws IOException {
+        onLargeStack(() -> write(path, globals));
+    }
+
+    private static void read(Path path, Environment globals) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if(in.readInt() != MAGIC) throw new IOException("Not a snapshot: " + path);
+            @SuppressWarnings("unchecked")
+            Map<String, Object> bindings = (Map<String, Object>)new Input(in).readObject();
+            for(Map.Entry<String, Object> binding : bindings.entrySet()) {
+                globals.define(binding.getKey(), binding.getValue());
+            }
+        } catch(ClassNotFoundException | ClassCastException unreadable) {
+            throw new IOException("Not a snapshot of this build: " + path, unreadable);
+        }
+    }
+
+    private static void write(Path path, Environment globals) throws IOException {
+        // written aside and moved into place, for other runs loading it meanwhile.
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), ".jlox", ".tmp");
+        try {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                Output objects = new Output(out);
+                objects.writeObject(new HashMap<>(globals.bindings()));
+                objects.flush();
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static void onLargeStack(Action action) throws IOException {
+        IOException[] failure = new IOException[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                action.run();
+            } catch(IOException e) {
+                failure[0] = e;
+            } catch(StackOverflowError e) {
+                failure[0] = new IOException("Snapshot nested too deeply", e);
+            }
+        }, "snapshot", STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        }
+        if(failure[0] != null) throw failure[0];
+    }
+
+    // A native in the snapshot - only its name is written.
+    private static final class NativeFunction implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        NativeFunction(String name) {
+            this.name = name;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            return Globals.nativeFunctions().get(name);
+        }
+    }
+
+    private static final class Output extends ObjectOutputStream {
+        private final Map<Object, String> natives = new IdentityHashMap<>();
+
+        Output(OutputStream out) throws IOException {
+            super(out);
+            for(Map.Entry<String, LoxCallable> entry : Globals.nativeFunctions().entrySet()) {
+                natives.put(entry.getValue(), entry.getKey());
+            }
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object object) {
+            if(object instanceof CompiledFunction) return null;
+            String name = natives.get(object);
+            if(name != null) return new NativeFunction(name);
+            return object;
+        }
+    }
+
+    private static final class Input extends ObjectInputStream {
+        Input(InputStream in) throws IOException {
+            super(in);
+            setObjectInputFilter(Input::filter);
+            enableResolveObject(true);
+        }
+
+        private static ObjectInputFilter.Status filter(ObjectInputFilter.FilterInfo info) {
+            Class<?> type = info.serialClass();
+            if(type == null) return ObjectInputFilter.Status.UNDECIDED;
+            while(type.isArray()) type = type.getComponentType();
+            if(type.isPrimitive() || type.getName().startsWith(RUNTIME) || ALLOWED.contains(type.getName())) {
+                return ObjectInputFilter.Status.ALLOWED;
+            }
+            return ObjectInputFilter.Status.REJECTED;
+        }
+
+        @Override
+        protected Object resolveObject(Object object) {
+            if(object instanceof Stmt.Function) {
+                // its compiled body was left out - the count starts again, to compile it anew.
+                ((Stmt.Function)object).calls = 0;
+            } else if(object instanceof String) {
+                // the names are the runtime's keys - the same objects as the lexemes of the
+                // scripts run after the snapshot (see Symbols).
+                return ((String)object).intern();
+            }
+            return object;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.craftinginterpreters.lox;
 
+import java.io.Serializable;
 import java.util.List;
 
-abstract class Stmt {
+abstract class Stmt implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     interface Visitor<R> {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
@@ -13,10 +16,14 @@ abstract class Stmt {
         R visitReturnStmt(Return stmt);
         R visitIfStmt(If stmt);
         R visitWhileStmt(While stmt);
+        R visitForStmt(For stmt);
         R visitBreakStmt(Break stmt);
+        R visitImportStmt(Import stmt);
         }
 
     static class Block extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Block(List<Stmt> statements) {
             this.statements = statements;
         }
@@ -28,9 +35,12 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        int frameSize;
     }
 
     static class Class extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Class(Token name, Expr.Variable superClass, List<Stmt.Function> methods) {
             this.name = name;
             this.superClass = superClass;
@@ -46,9 +56,14 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superClass;
         final List<Stmt.Function> methods;
+        int slot = -1;
+        boolean boxed;
+        Shape rootShape;
     }
 
     static class Expression extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Expression(Expr expression) {
             this.expression = expression;
         }
@@ -63,6 +78,8 @@ abstract class Stmt {
     }
 
     static class Function extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
             this.params = params;
@@ -78,9 +95,19 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        boolean boxed;
+        int frameSize;
+        int[] boxedParams;
+        int[] captureDepths;
+        int[] captureSlots;
+        int calls;
+        CompiledFunction compiled;
     }
 
     static class Print extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Print(Expr expression) {
             this.expression = expression;
         }
@@ -95,6 +122,8 @@ abstract class Stmt {
     }
 
     static class Var extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Var(Token name, Expr initializer) {
             this.name = name;
             this.initializer = initializer;
@@ -108,9 +137,13 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot = -1;
+        boolean boxed;
     }
 
     static class Return extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Return(Token keyword, Expr value) {
             this.keyword = keyword;
             this.value = value;
@@ -124,9 +157,12 @@ abstract class Stmt {
 
         final Token keyword;
         final Expr value;
+        boolean tailCall;
     }
 
     static class If extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
             this.condition = condition;
             this.thenBranch = thenBranch;
@@ -145,6 +181,8 @@ abstract class Stmt {
     }
 
     static class While extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         While(Expr condition, Stmt body) {
             this.condition = condition;
             this.body = body;
@@ -160,7 +198,32 @@ abstract class Stmt {
         final Stmt body;
     }
 
+    static class For extends Stmt {
+        private static final long serialVersionUID = 1L;
+
+        For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+
+       @Override
+       <R> R accept(Visitor<R> visitor) {
+           return visitor.visitForStmt(this);
+        }
+
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+        int frameSize;
+    }
+
     static class Break extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         Break(Token token) {
             this.token = token;
         }
@@ -174,5 +237,24 @@ abstract class Stmt {
         final Token token;
     }
 
+    static class Import extends Stmt {
+        private static final long serialVersionUID = 1L;
+
+        Import(Token keyword, String path) {
+            this.keyword = keyword;
+            this.path = path;
+        }
+
+
+       @Override
+       <R> R accept(Visitor<R> visitor) {
+           return visitor.visitImportStmt(this);
+        }
+
+        final Token keyword;
+        final String path;
+        Module module;
+    }
+
     abstract <R> R accept(Visitor<R> visitor);
 }
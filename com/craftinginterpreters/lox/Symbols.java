@@ -0,0 +1,67 @@
+package com.craftinginterpreters.lox;
+
+// The identifiers of a source being scanned, each kept as one canonical String - all the tokens
+// of a name share the same lexeme. The runtime's name maps (globals, methods, shapes) are keyed
+// by lexemes, so a lookup finds its key by identity and with the String's cached hash, and a
+// name used many times in a large source is stored once.
+//
+// A table belongs to one scanner, so the compilations of several threads do not share it, and
+// it goes with the scanner. The names are the JVM's interned Strings, which makes them the same
+// objects across the sources too - and collected once no program uses them.
+final class Symbols {
+
+    private String[] table = new String[1024];
+    private int count = 0;
+
+    // The symbol for source[start, end) - only a new name makes a String.
+    String intern(CharSequence source, int start, int end) {
+        int length = end - start;
+        int hash = 0;
+        for(int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = table.length - 1;
+        int index = spread(hash) & mask;
+        for(String symbol = table[index]; symbol != null; symbol = table[index]) {
+            // a String caches its hash, the same function as the one above.
+            if(symbol.hashCode() == hash && matches(symbol, source, start, length)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+
+        // the JVM's copy, so the names the runtime spells out ("init", "this", the natives)
+        // are the same objects.
+        String symbol = source.subSequence(start, end).toString().intern();
+        table[index] = symbol;
+        if(++count * 2 > table.length) grow();
+        return symbol;
+    }
+
+    private boolean matches(String symbol, CharSequence source, int start, int length) {
+        if(symbol.length() != length) return false;
+        for(int i = 0; i < length; i++) {
+            if(symbol.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for(String symbol : old) {
+            if(symbol == null) continue;
+            int index = spread(symbol.hashCode()) & mask;
+            while(table[index] != null) {
+                index = (index + 1) & mask;
+            }
+            table[index] = symbol;
+        }
+    }
+}
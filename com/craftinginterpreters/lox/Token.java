@@ -1,6 +1,10 @@
 package com.craftinginterpreters.lox;
 
-class Token {
+import java.io.Serializable;
+
+class Token implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     final TokenType type;
     final String lexeme;
     final Object literal;
@@ -48,6 +48,7 @@ public enum TokenType {
     VAR,
     WHILE,
     BREAK,
+    IMPORT,
 
     // End.
     EOF
@@ -0,0 +1,513 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Stack based bytecode interpreter for chunks produced by the VmCompiler.
+class Vm {
+
+    private static final int framesMax = 4096;
+
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+        // stack slot of the callee, its arguments and locals follow.
+        int base;
+    }
+
+    // Runtime error without a source position yet - run() attaches the current line.
+    private static class VmError extends RuntimeException {
+        VmError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+
+    private final CallFrame[] frames = new CallFrame[framesMax];
+    private int frameCount = 0;
+
+    private final Map<String, Object> globals = new HashMap<>();
+    private VmUpvalue openUpvalues = null;
+    // the modules imported so far - like the globals, they outlive a run.
+    private final Set<Module> modules = new HashSet<>();
+
+    // where print writes - the command line gives both backends the same writer.
+    private final PrintWriter out;
+
+    Vm(PrintWriter out) {
+        this.out = out;
+        globals.putAll(Globals.nativeFunctions());
+    }
+
+    void interpret(VmFunction script) {
+        try {
+            VmClosure closure = new VmClosure(script);
+            push(closure);
+            call(closure, 0);
+            while(run()) {
+                // next frame
+            }
+        } catch(RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            // globals survive (for the REPL), everything else is per run.
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    // Executes the top frame until it calls or returns - returns false once the script is done.
+    // Re-entering per frame switch (rather than looping here forever) keeps this method hot
+    // for the JIT instead of relying on on-stack replacement of a single long invocation;
+    // rarely executed instructions live in helpers to keep it small.
+    private boolean run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        try {
+            for(;;) {
+                switch(code[ip++]) {
+                    case CONSTANT:
+                        push(constants[readShort(code, ip)]);
+                        ip += 2;
+                        break;
+                    case NIL: push(null); break;
+                    case TRUE: push(true); break;
+                    case FALSE: push(false); break;
+                    case POP: stack[--sp] = null; break;
+
+                    case GET_LOCAL:
+                        push(stack[base + (code[ip++] & 0xff)]);
+                        break;
+                    case SET_LOCAL:
+                        stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                        break;
+                    case GET_GLOBAL:
+                        push(getGlobal((String)constants[readShort(code, ip)]));
+                        ip += 2;
+                        break;
+                    case DEFINE_GLOBAL:
+                        globals.put((String)constants[readShort(code, ip)], pop());
+                        ip += 2;
+                        break;
+                    case SET_GLOBAL:
+                        setGlobal((String)constants[readShort(code, ip)], stack[sp - 1]);
+                        ip += 2;
+                        break;
+                    case GET_UPVALUE: {
+                        VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        push(upvalue.open ? stack[upvalue.location] : upvalue.closed);
+                        break;
+                    }
+                    case SET_UPVALUE: {
+                        VmUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                        if(upvalue.open) {
+                            stack[upvalue.location] = stack[sp - 1];
+                        } else {
+                            upvalue.closed = stack[sp - 1];
+                        }
+                        break;
+                    }
+
+                    case GET_PROPERTY:
+                        getProperty((String)constants[readShort(code, ip)]);
+                        ip += 2;
+                        break;
+                    case SET_PROPERTY:
+                        setProperty((String)constants[readShort(code, ip)]);
+                        ip += 2;
+                        break;
+                    case GET_SUPER: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        VmClass superClass = (VmClass)pop();
+                        stack[sp - 1] = new VmBoundMethod(stack[sp - 1],
+                                                          findMethod(superClass, name, "Undefined '" + name + "'."));
+                        break;
+                    }
+
+                    case EQUAL: {
+                        Object b = pop();
+                        stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case GREATER:
+                        checkNumberOperands();
+                        stack[sp - 2] = (double)stack[sp - 2] > (double)pop();
+                        break;
+                    case GREATER_EQUAL:
+                        checkNumberOperands();
+                        stack[sp - 2] = (double)stack[sp - 2] >= (double)pop();
+                        break;
+                    case LESS:
+                        checkNumberOperands();
+                        stack[sp - 2] = (double)stack[sp - 2] < (double)pop();
+                        break;
+                    case LESS_EQUAL:
+                        checkNumberOperands();
+                        stack[sp - 2] = (double)stack[sp - 2] <= (double)pop();
+                        break;
+                    case ADD:
+                        if(stack[sp - 1] instanceof Double && stack[sp - 2] instanceof Double) {
+                            stack[sp - 2] = (double)stack[sp - 2] + (double)pop();
+                        } else {
+                            Object b = pop();
+                            stack[sp - 1] = Interpreter.add(null, stack[sp - 1], b);
+                        }
+                        break;
+                    case SUBTRACT:
+                        checkNumberOperands();
+                        stack[sp - 2] = (double)stack[sp - 2] - (double)pop();
+                        break;
+                    case MULTIPLY:
+                        checkNumberOperands();
+                        stack[sp - 2] = (double)stack[sp - 2] * (double)pop();
+                        break;
+                    case DIVIDE:
+                        checkNumberOperands();
+                        Interpreter.checkNumberNotZero(null, (double)stack[sp - 1]);
+                        stack[sp - 2] = (double)stack[sp - 2] / (double)pop();
+                        break;
+                    case NOT:
+                        stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                        break;
+                    case NEGATE:
+                        if(!(stack[sp - 1] instanceof Double)) {
+                            throw new VmError("Operand must be a number.");
+                        }
+                        stack[sp - 1] = -(double)stack[sp - 1];
+                        break;
+
+                    case PRINT:
+                        out.println(Interpreter.stringify(pop()));
+                        break;
+
+                    case JUMP:
+                        ip += readShort(code, ip) + 2;
+                        break;
+                    case JUMP_IF_FALSE:
+                        if(!Interpreter.isTruthy(stack[sp - 1])) {
+                            ip += readShort(code, ip);
+                        }
+                        ip += 2;
+                        break;
+                    case LOOP:
+                        ip -= readShort(code, ip) - 2;
+                        break;
+
+                    case CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        // natives and classes without init() complete in place.
+                        if(callValue(stack[sp - 1 - argCount], argCount)) return true;
+                        break;
+                    }
+                    case INVOKE: {
+                        String name = (String)constants[readShort(code, ip)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        frame.ip = ip;
+                        if(invoke(name, argCount)) return true;
+                        break;
+                    }
+                    case SUPER_INVOKE: {
+                        String name = (String)constants[readShort(code, ip)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        frame.ip = ip;
+                        VmClass superClass = (VmClass)pop();
+                        call(findMethod(superClass, name, "Undefined '" + name + "'."), argCount);
+                        return true;
+                    }
+
+                    case CLOSURE:
+                        ip = closure(frame, (VmFunction)constants[readShort(code, ip)], code, ip + 2);
+                        break;
+                    case CLOSE_UPVALUE:
+                        closeUpvalues(sp - 1);
+                        stack[--sp] = null;
+                        break;
+
+                    case RETURN: {
+                        Object result = pop();
+                        closeUpvalues(base);
+                        frameCount--;
+                        if(frameCount == 0) {
+                            // pop the script closure.
+                            stack[--sp] = null;
+                            return false;
+                        }
+
+                        Arrays.fill(stack, base, sp, null);
+                        sp = base;
+                        push(result);
+                        return true;
+                    }
+
+                    case CLASS:
+                        push(new VmClass((String)constants[readShort(code, ip)]));
+                        ip += 2;
+                        break;
+                    case INHERIT:
+                        inherit();
+                        break;
+                    case METHOD: {
+                        VmClosure method = (VmClosure)pop();
+                        ((VmClass)stack[sp - 1]).methods.put((String)constants[readShort(code, ip)], method);
+                        ip += 2;
+                        break;
+                    }
+                    case IMPORT: {
+                        Module module = (Module)constants[readShort(code, ip)];
+                        ip += 2;
+                        frame.ip = ip;
+                        if(importModule(module)) return true;
+                        break;
+                    }
+
+                    default:
+                        throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+                }
+            }
+        } catch(VmError error) {
+            throw new RuntimeError(lineToken(frame, ip), error.getMessage());
+        } catch(RuntimeError error) {
+            // the checks shared with the interpreter (null operator) leave the line to us.
+            if(error.token != null) throw error;
+            throw new RuntimeError(lineToken(frame, ip), error.getMessage());
+        }
+    }
+
+    // ip is past the failing instruction (and its operands), which share its line.
+    private static Token lineToken(CallFrame frame, int ip) {
+        int line = frame.closure.function.chunk.lines[ip - 1];
+        return new Token(TokenType.EOF, "", null, line);
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+        if(sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    // Returns true if a new frame was pushed - the module's script, run at its first import.
+    private boolean importModule(Module module) {
+        if(!modules.add(module)) {
+            push(null);
+            return false;
+        }
+        VmClosure closure = new VmClosure(module.vmFunction());
+        push(closure);
+        call(closure, 0);
+        return true;
+    }
+
+    // Returns true if a new frame was pushed.
+    private boolean callValue(Object callee, int argCount) {
+        if(callee instanceof VmClosure) {
+            call((VmClosure)callee, argCount);
+            return true;
+        }
+        if(callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod)callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return true;
+        }
+        if(callee instanceof VmClass) {
+            VmClass klass = (VmClass)callee;
+            stack[sp - argCount - 1] = new VmInstance(klass);
+            VmClosure initializer = klass.methods.get("init");
+            if(initializer != null) {
+                call(initializer, argCount);
+                return true;
+            }
+            if(argCount != 0) {
+                throw new VmError(String.format("Expected %d arguments but got %d.", 0, argCount));
+            }
+            return false;
+        }
+        if(callee instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable)callee;
+            if(argCount != function.arity()) {
+                throw new VmError(String.format("Expected %d arguments but got %d.",
+                                                function.arity(), argCount));
+            }
+            List<Object> arguments = new ArrayList<>(Arrays.asList(stack).subList(sp - argCount, sp));
+            // natives do not need an interpreter.
+            Object result = function.call(null, arguments);
+            Arrays.fill(stack, sp - argCount - 1, sp, null);
+            sp -= argCount + 1;
+            push(result);
+            return false;
+        }
+        throw new VmError("Can only expr functions and classes.");
+    }
+
+    private void call(VmClosure closure, int argCount) {
+        if(argCount != closure.function.arity) {
+            throw new VmError(String.format("Expected %d arguments but got %d.",
+                                            closure.function.arity, argCount));
+        }
+        if(frameCount == framesMax) {
+            throw new VmError("Stack overflow.");
+        }
+
+        CallFrame frame = frames[frameCount];
+        if(frame == null) {
+            frame = frames[frameCount] = new CallFrame();
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+        frameCount++;
+    }
+
+    // Returns true if a new frame was pushed.
+    private boolean invoke(String name, int argCount) {
+        Object receiver = stack[sp - argCount - 1];
+        if(!(receiver instanceof VmInstance)) {
+            throw new VmError("Only instances have properties.");
+        }
+
+        VmInstance instance = (VmInstance)receiver;
+        // a field holding a function shadows a method of the same name.
+        Object field = instance.fields.get(name);
+        if(field != null || instance.fields.containsKey(name)) {
+            stack[sp - argCount - 1] = field;
+            return callValue(field, argCount);
+        }
+
+        call(findMethod(instance.klass, name, "Undefined property '" + name + "'."), argCount);
+        return true;
+    }
+
+    private VmClosure findMethod(VmClass klass, String name, String undefinedMessage) {
+        VmClosure method = klass.methods.get(name);
+        if(method == null) {
+            throw new VmError(undefinedMessage);
+        }
+        return method;
+    }
+
+    private Object getGlobal(String name) {
+        Object value = globals.get(name);
+        if(value == null && !globals.containsKey(name)) {
+            throw new VmError("Undefined variable '" + name + "'.");
+        }
+        return value;
+    }
+
+    private void setGlobal(String name, Object value) {
+        if(!globals.containsKey(name)) {
+            throw new VmError("Undefined variable '" + name + "'.");
+        }
+        globals.put(name, value);
+    }
+
+    private void getProperty(String name) {
+        if(!(stack[sp - 1] instanceof VmInstance)) {
+            throw new VmError("Only instances have properties.");
+        }
+
+        VmInstance instance = (VmInstance)stack[sp - 1];
+        Object value = instance.fields.get(name);
+        if(value != null || instance.fields.containsKey(name)) {
+            stack[sp - 1] = value;
+            return;
+        }
+        stack[sp - 1] = new VmBoundMethod(instance,
+                                          findMethod(instance.klass, name, "Undefined property '" + name + "'."));
+    }
+
+    private void setProperty(String name) {
+        if(!(stack[sp - 2] instanceof VmInstance)) {
+            throw new VmError("Only instances have fields.");
+        }
+        Object value = pop();
+        ((VmInstance)stack[sp - 1]).fields.put(name, value);
+        stack[sp - 1] = value;
+    }
+
+    // Creates a closure over the function, reading its upvalue operands - returns the new ip.
+    private int closure(CallFrame frame, VmFunction function, byte[] code, int ip) {
+        VmClosure closure = new VmClosure(function);
+        for(int i = 0; i < closure.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++] & 0xff;
+            closure.upvalues[i] = isLocal
+                ? captureUpvalue(frame.base + index)
+                : frame.closure.upvalues[index];
+        }
+        push(closure);
+        return ip;
+    }
+
+    private void inherit() {
+        if(!(stack[sp - 2] instanceof VmClass)) {
+            throw new VmError("Superclass must be a class.");
+        }
+        VmClass subClass = (VmClass)pop();
+        subClass.methods.putAll(((VmClass)stack[sp - 1]).methods);
+    }
+
+    private VmUpvalue captureUpvalue(int location) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while(upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if(upvalue != null && upvalue.location == location) {
+            return upvalue;
+        }
+
+        VmUpvalue created = new VmUpvalue(location, upvalue);
+        if(previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while(openUpvalues != null && openUpvalues.location >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.open = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void checkNumberOperands() {
+        Interpreter.checkNumberOperands(null, stack[sp - 2], stack[sp - 1]);
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+// A method read off an instance as a value; the receiver becomes slot 0 ("this") when called.
+class VmBoundMethod {
+    final Object receiver;
+    final VmClosure method;
+
+    VmBoundMethod(Object receiver, VmClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
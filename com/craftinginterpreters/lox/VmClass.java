@@ -0,0 +1,19 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+    final String name;
+    // Inherited methods are copied down when the class is created, so this is the full table.
+    final Map<String, VmClosure> methods = new HashMap<>();
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return "class<" + name + ">";
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+// Runtime function value of the VM: a compiled function plus its captured variables.
+class VmClosure {
+    final VmFunction function;
+    final VmUpvalue[] upvalues;
+
+    VmClosure(VmFunction function) {
+        this.function = function;
+        this.upvalues = new VmUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
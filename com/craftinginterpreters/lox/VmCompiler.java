@@ -0,0 +1,721 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Expr.Assign;
+import com.craftinginterpreters.lox.Expr.Binary;
+import com.craftinginterpreters.lox.Expr.Grouping;
+import com.craftinginterpreters.lox.Expr.Literal;
+import com.craftinginterpreters.lox.Expr.Unary;
+import com.craftinginterpreters.lox.Expr.Variable;
+import com.craftinginterpreters.lox.Expr.Logical;
+import com.craftinginterpreters.lox.Expr.Call;
+import com.craftinginterpreters.lox.Expr.AnonFun;
+import com.craftinginterpreters.lox.Expr.Get;
+import com.craftinginterpreters.lox.Expr.Inline;
+import com.craftinginterpreters.lox.Expr.Invoke;
+import com.craftinginterpreters.lox.Expr.Set;
+import com.craftinginterpreters.lox.Expr.This;
+import com.craftinginterpreters.lox.Expr.Super;
+import com.craftinginterpreters.lox.Stmt.Block;
+import com.craftinginterpreters.lox.Stmt.Expression;
+import com.craftinginterpreters.lox.Stmt.For;
+import com.craftinginterpreters.lox.Stmt.Print;
+import com.craftinginterpreters.lox.Stmt.Var;
+import com.craftinginterpreters.lox.Stmt.If;
+import com.craftinginterpreters.lox.Stmt.While;
+import com.craftinginterpreters.lox.Stmt.Break;
+import com.craftinginterpreters.lox.Stmt.Import;
+import com.craftinginterpreters.lox.Stmt.Function;
+import com.craftinginterpreters.lox.Stmt.Class;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Lowers the (parsed and resolved) syntax tree into bytecode for the Vm.
+// Locals live in stack slots of their function's frame and captured ones are
+// reached through upvalues, so scopes are worked out here again, clox style.
+class VmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private static final int maxLocals = 256;
+    private static final int maxUpvalues = 256;
+    private static final int maxShort = 0xffff;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    // Compilation state of one function, chained to the enclosing one for upvalue lookups.
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, VmFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private FunctionState current = null;
+
+    // Source line recorded for the instructions being emitted.
+    private int line = 0;
+
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null, 0), FunctionType.SCRIPT);
+        // slot zero holds the function being called.
+        current.locals.add(new Local("", 0));
+
+        for(Stmt statement : statements) {
+            statement.accept(this);
+        }
+
+        emitReturn();
+        return current.function;
+    }
+
+    // Statements
+
+    @Override
+    public Void visitExpressionStmt(Expression stmt) {
+        stmt.expression.accept(this);
+        emit(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Print stmt) {
+        stmt.expression.accept(this);
+        emit(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Var stmt) {
+        line = stmt.name.line;
+        // the local is in scope for its initializer, so that closures in it can refer to it.
+        declareVariable(stmt.name);
+
+        if(stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        } else {
+            emit(NIL);
+        }
+
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Block stmt) {
+        beginScope();
+        for(Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(If stmt) {
+        stmt.condition.accept(this);
+
+        int thenJump = emitJump(JUMP_IF_FALSE);
+        emit(POP);
+        stmt.thenBranch.accept(this);
+
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        emit(POP);
+
+        if(stmt.elseBranch != null) {
+            stmt.elseBranch.accept(this);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        int loopStart = chunk().count;
+        stmt.condition.accept(this);
+
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        emit(POP);
+
+        Loop loop = new Loop(current.loop, current.scopeDepth);
+        current.loop = loop;
+        stmt.body.accept(this);
+        current.loop = loop.enclosing;
+
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(POP);
+
+        // break jumps land after the condition has been popped.
+        for(int breakJump : loop.breakJumps) {
+            patchJump(breakJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(For stmt) {
+        beginScope();
+        if(stmt.initializer != null) stmt.initializer.accept(this);
+
+        int loopStart = chunk().count;
+        stmt.condition.accept(this);
+
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        emit(POP);
+
+        Loop loop = new Loop(current.loop, current.scopeDepth);
+        current.loop = loop;
+
+        // a loop variable closures capture (the resolver has put it in a cell) is a new one in
+        // every iteration: the body gets a copy, whose value goes back before the increment.
+        int variable = -1;
+        if(stmt.initializer instanceof Var && ((Var)stmt.initializer).boxed) {
+            Token name = ((Var)stmt.initializer).name;
+            variable = resolveLocal(current, name.lexeme);
+            beginScope();
+            emitBytes(GET_LOCAL, variable);
+            addLocal(name.lexeme);
+        }
+
+        stmt.body.accept(this);
+
+        if(variable != -1) {
+            emitBytes(GET_LOCAL, current.locals.size() - 1);
+            emitBytes(SET_LOCAL, variable);
+            emit(POP);
+            endScope();
+        }
+        current.loop = loop.enclosing;
+
+        if(stmt.increment != null) {
+            stmt.increment.accept(this);
+            emit(POP);
+        }
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emit(POP);
+
+        // break jumps land after the condition has been popped.
+        for(int breakJump : loop.breakJumps) {
+            patchJump(breakJump);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Break stmt) {
+        line = stmt.token.line;
+        if(current.loop == null) {
+            Lox.error(stmt.token, "Encountered 'break' without enclosing loop.");
+            return null;
+        }
+
+        // discard the locals of the scopes being jumped out of.
+        List<Local> locals = current.locals;
+        for(int i = locals.size() - 1;
+            i >= 0 && locals.get(i).depth > current.loop.scopeDepth;
+            i--) {
+            emit(locals.get(i).isCaptured ? CLOSE_UPVALUE : POP);
+        }
+
+        current.loop.breakJumps.add(emitJump(JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Import stmt) {
+        line = stmt.keyword.line;
+        // compiled now, for its errors to be reported with the program's.
+        stmt.module.vmFunction();
+        // leaves the value of the module's script, or nil when it has already run.
+        emit(IMPORT);
+        emitShort(makeConstant(stmt.module));
+        emit(POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Function stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+        // a local function is initialized before its body is compiled (to support recursion).
+        function(FunctionType.FUNCTION, stmt.name.lexeme, stmt.params, stmt.body);
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if(current.type == FunctionType.INITIALIZER) {
+            // init() always hands back "this".
+            emitBytes(GET_LOCAL, 0);
+        } else if(stmt.value != null) {
+            stmt.value.accept(this);
+        } else {
+            emit(NIL);
+        }
+        line = stmt.keyword.line;
+        emit(RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+
+        emit(CLASS);
+        emitShort(nameConstant);
+        defineVariable(stmt.name);
+
+        if(stmt.superClass != null) {
+            stmt.superClass.accept(this);
+
+            // the superclass stays on the stack as the local "super" the methods capture.
+            beginScope();
+            addLocal("super");
+
+            namedVariable(stmt.name, false);
+            line = stmt.superClass.name.line;
+            emit(INHERIT);
+        }
+
+        // keep the class on the stack while its methods are attached.
+        namedVariable(stmt.name, false);
+        for(Stmt.Function method : stmt.methods) {
+            boolean isInitializer = method.name.lexeme.equals("init");
+            function(isInitializer ? FunctionType.INITIALIZER : FunctionType.METHOD,
+                     method.name.lexeme, method.params, method.body);
+            line = method.name.line;
+            emit(METHOD);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+        emit(POP);
+
+        if(stmt.superClass != null) {
+            endScope();
+        }
+        return null;
+    }
+
+    // Expressions
+
+    @Override
+    public Void visitBinaryExpr(Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+
+        line = expr.operator.line;
+        switch(expr.operator.type) {
+            case MINUS: emit(SUBTRACT); break;
+            case SLASH: emit(DIVIDE); break;
+            case STAR: emit(MULTIPLY); break;
+            case PLUS: emit(ADD); break;
+            case GREATER: emit(GREATER); break;
+            case LESS: emit(LESS); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL); break;
+            case LESS_EQUAL: emit(LESS_EQUAL); break;
+            case EQUAL_EQUAL: emit(EQUAL); break;
+            case BANG_EQUAL: emitBytes(EQUAL, NOT); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Literal expr) {
+        if(expr.value == null) {
+            emit(NIL);
+        } else if(expr.value == Boolean.TRUE) {
+            emit(TRUE);
+        } else if(expr.value == Boolean.FALSE) {
+            emit(FALSE);
+        } else {
+            emit(CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Unary expr) {
+        expr.right.accept(this);
+
+        line = expr.operator.line;
+        switch(expr.operator.type) {
+            case MINUS: emit(NEGATE); break;
+            case BANG: emit(NOT); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Logical expr) {
+        expr.left.accept(this);
+
+        if(expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(JUMP_IF_FALSE);
+            int endJump = emitJump(JUMP);
+            patchJump(elseJump);
+            emit(POP);
+            expr.right.accept(this);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(JUMP_IF_FALSE);
+            emit(POP);
+            expr.right.accept(this);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Variable expr) {
+        namedVariable(expr.name, false);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Assign expr) {
+        expr.value.accept(this);
+        namedVariable(expr.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Call expr) {
+        if(expr.callee instanceof Super) {
+            Super callee = (Super)expr.callee;
+            line = callee.keyword.line;
+            namedVariable(thisToken(callee.keyword), false);
+            arguments(expr.arguments);
+            namedVariable(callee.keyword, false);
+            line = expr.paren.line;
+            emit(SUPER_INVOKE);
+            emitShort(makeConstant(callee.method.lexeme));
+            emit(expr.arguments.size());
+            return null;
+        }
+
+        expr.callee.accept(this);
+        arguments(expr.arguments);
+        line = expr.paren.line;
+        emitBytes(CALL, expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Invoke expr) {
+        // obj.method(...) - look the method up and call it without binding it first.
+        expr.object.accept(this);
+        arguments(expr.arguments);
+        line = expr.paren.line;
+        emit(INVOKE);
+        emitShort(makeConstant(expr.name.lexeme));
+        emit(expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitInlineExpr(Inline expr) {
+        // the VM resolves names itself - it makes the call.
+        return expr.call.accept(this);
+    }
+
+    @Override
+    public Void visitGetExpr(Get expr) {
+        expr.object.accept(this);
+        line = expr.name.line;
+        emit(GET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Set expr) {
+        expr.object.accept(this);
+        expr.value.accept(this);
+        line = expr.name.line;
+        emit(SET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(This expr) {
+        namedVariable(expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Super expr) {
+        line = expr.keyword.line;
+        namedVariable(thisToken(expr.keyword), false);
+        namedVariable(expr.keyword, false);
+        line = expr.method.line;
+        emit(GET_SUPER);
+        emitShort(makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitAnonFunExpr(AnonFun expr) {
+        function(FunctionType.FUNCTION, "__AnonFunc__", expr.params, expr.body);
+        return null;
+    }
+
+    // Functions
+
+    private void function(FunctionType type, String name, List<Token> params, List<Stmt> body) {
+        current = new FunctionState(current, new VmFunction(name, params.size()), type);
+        // methods find their receiver in slot zero.
+        current.locals.add(new Local(type == FunctionType.FUNCTION ? "" : "this", 0));
+
+        beginScope();
+        for(Token param : params) {
+            addLocal(param.lexeme);
+        }
+        for(Stmt statement : body) {
+            statement.accept(this);
+        }
+        emitReturn();
+
+        FunctionState state = current;
+        state.function.upvalueCount = state.upvalues.size();
+        current = state.enclosing;
+
+        emit(CLOSURE);
+        emitShort(makeConstant(state.function));
+        for(Upvalue upvalue : state.upvalues) {
+            emit(upvalue.isLocal ? 1 : 0);
+            emit(upvalue.index);
+        }
+    }
+
+    private void arguments(List<Expr> arguments) {
+        for(Expr argument : arguments) {
+            argument.accept(this);
+        }
+    }
+
+    private void emitReturn() {
+        if(current.type == FunctionType.INITIALIZER) {
+            emitBytes(GET_LOCAL, 0);
+        } else {
+            emit(NIL);
+        }
+        emit(RETURN);
+    }
+
+    // Variables and scopes
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while(!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emit(locals.get(locals.size() - 1).isCaptured ? CLOSE_UPVALUE : POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void declareVariable(Token name) {
+        // globals are late bound by name.
+        if(current.scopeDepth == 0) return;
+        addLocal(name.lexeme);
+    }
+
+    private void defineVariable(Token name) {
+        // a local's value is already sitting in its stack slot.
+        if(current.scopeDepth > 0) return;
+        emit(DEFINE_GLOBAL);
+        emitShort(makeConstant(name.lexeme));
+    }
+
+    private void addLocal(String name) {
+        if(current.locals.size() == maxLocals) {
+            Lox.error(line, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    private void namedVariable(Token name, boolean assign) {
+        int arg = resolveLocal(current, name.lexeme);
+        if(arg != -1) {
+            emitBytes(assign ? SET_LOCAL : GET_LOCAL, arg);
+            return;
+        }
+
+        arg = resolveUpvalue(current, name.lexeme);
+        if(arg != -1) {
+            emitBytes(assign ? SET_UPVALUE : GET_UPVALUE, arg);
+            return;
+        }
+
+        line = name.line;
+        emit(assign ? SET_GLOBAL : GET_GLOBAL);
+        emitShort(makeConstant(name.lexeme));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for(int i = state.locals.size() - 1; i >= 0; i--) {
+            if(state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if(state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if(local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for(int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if(upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if(state.upvalues.size() == maxUpvalues) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private Token thisToken(Token keyword) {
+        return new Token(TokenType.THIS, "this", null, keyword.line);
+    }
+
+    // Emitting
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emit(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emitBytes(int b1, int b2) {
+        emit(b1);
+        emit(b2);
+    }
+
+    private void emitShort(int value) {
+        emit((value >> 8) & 0xff);
+        emit(value & 0xff);
+    }
+
+    private int makeConstant(Object value) {
+        int index = chunk().addConstant(value);
+        if(index > maxShort) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private int emitJump(int instruction) {
+        emit(instruction);
+        emitShort(maxShort);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the bytes of the jump offset itself.
+        int jump = chunk().count - offset - 2;
+        if(jump > maxShort) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk().code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(LOOP);
+        int offset = chunk().count - loopStart + 2;
+        if(offset > maxShort) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+}
@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox;
+
+// Compiled form of a function declaration - shared by all closures created from it.
+class VmFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+
+    VmFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if(name == null) return "<script>";
+        return String.format("<Fn %s>", name);
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+// A captured variable. While open it refers to a slot on the VM stack, once the
+// variable goes out of scope the value is moved (closed over) into the upvalue.
+class VmUpvalue {
+    final int location;
+    Object closed;
+    boolean open = true;
+
+    // Open upvalues form a list sorted by stack location (top-most first).
+    VmUpvalue next;
+
+    VmUpvalue(int location, VmUpvalue next) {
+        this.location = location;
+        this.next = next;
+    }
+}
@@ -19,31 +19,35 @@ public class GenerateAst {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Binary     : Expr left, Token operator, Expr right",
+                "Binary     : Expr left, Token operator, Expr right | int specialization",
                 "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Get        : Expr object, Token name",
-                "Set        : Expr object, Token name, Expr value",
-                "This       : Token keyword",
-                "Super      : Token keyword, Token method",
+                "Invoke     : Expr object, Token name, Token paren, List<Expr> arguments | InlineCache cache = new InlineCache()",
+                "Get        : Expr object, Token name | InlineCache cache = new InlineCache()",
+                "Set        : Expr object, Token name, Expr value | InlineCache cache = new InlineCache()",
+                "This       : Token keyword | int depth = -1, int slot = -1",
+                "Super      : Token keyword, Token method | int depth = -1, int slot = -1, int thisDepth = -1, int thisSlot = -1",
                 "Grouping   : Expr expression",
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
                 "Unary      : Token operator, Expr right",
-                "Variable   : Token name",
-                "AnonFun    : List<Token> params, List<Stmt> body",
-                "Assign     : Token name, Expr value"));
+                "Variable   : Token name | int depth = -1, int slot = -1",
+                "AnonFun    : List<Token> params, List<Stmt> body | int frameSize, int[] boxedParams, int[] captureDepths, int[] captureSlots",
+                "Assign     : Token name, Expr value | int depth = -1, int slot = -1",
+                "Inline     : Call call, Expr body | int[] slots"));
         
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
-            "Class      : Token name, Expr.Variable superClass, List<Stmt.Function> methods",
+            "Block      : List<Stmt> statements | int frameSize",
+            "Class      : Token name, Expr.Variable superClass, List<Stmt.Function> methods | int slot = -1, boolean boxed, Shape rootShape",
             "Expression : Expr expression",
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            "Function   : Token name, List<Token> params, List<Stmt> body | int slot = -1, boolean boxed, int frameSize, int[] boxedParams, int[] captureDepths, int[] captureSlots, int calls, CompiledFunction compiled",
             "Print      : Expr expression",
-            "Var        : Token name, Expr initializer",
-            "Return     : Token keyword, Expr value",
+            "Var        : Token name, Expr initializer | int slot = -1, boolean boxed",
+            "Return     : Token keyword, Expr value | boolean tailCall",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "While      : Expr condition, Stmt body",
-            "Break      : Token token"
+            "For        : Stmt initializer, Expr condition, Expr increment, Stmt body | int frameSize",
+            "Break      : Token token",
+            "Import     : Token keyword, String path | Module module"
         ));
     }
 
@@ -58,17 +62,26 @@ public class GenerateAst {
 
         writer.println("package com.craftinginterpreters.lox;");
         writer.println();
+        writer.println("import java.io.Serializable;");
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        // serializable for snapshots, which keep the functions and classes a program defined.
+        writer.println("abstract class " + baseName + " implements Serializable {");
+        // bumped when the fields of the nodes change - it is written with them.
+        writer.println("    private static final long serialVersionUID = 1L;");
+        writer.println();
 
         defineVisitor(writer, baseName, types);
 
         for (String type : types) {
             var parts = type.split(":");
             String className = parts[0].trim();
-            String fields = parts[1].trim();
-            defineType(writer, baseName, className, fields);
+            // Fields after '|' are not constructor arguments but mutable
+            // annotations filled in by later passes (e.g. the resolver).
+            String[] sections = parts[1].split("\\|");
+            String fields = sections[0].trim();
+            String annotations = sections.length > 1 ? sections[1].trim() : null;
+            defineType(writer, baseName, className, fields, annotations);
         }
 
         writer.println();
@@ -93,9 +106,12 @@ public class GenerateAst {
             PrintWriter writer,
             String baseName,
             String className,
-            String fieldList) {
+            String fieldList,
+            String annotationList) {
         writer.println();
         writer.println("    static class " + className + " extends " + baseName + " {");
+        writer.println("        private static final long serialVersionUID = 1L;");
+        writer.println();
         writer.println("        " + className + "(" + fieldList + ") {");
 
         // Store parameters in fields
@@ -120,6 +136,12 @@ public class GenerateAst {
             writer.println("        final " + field + ";");
         }
 
+        if (annotationList != null) {
+            for (String annotation : annotationList.split(", ")) {
+                writer.println("        " + annotation + ";");
+            }
+        }
+
         writer.println("    }");
     }
 }
@@ -0,0 +1,63 @@
+// Block locals live in the frame of the enclosing function, in slots of their own - a
+// shadowing local, or one of a later block, does not disturb the others.
+var a = "global";
+{
+    var a = "outer";
+    {
+        var a = "inner";
+        print a;
+    }
+    print a;
+}
+print a;
+
+fun sums() {
+    var x = 1;
+    {
+        var y = 2;
+        {
+            var z = 3;
+            print x + y + z;
+        }
+    }
+    {
+        var w = 10;
+        print x + w;
+    }
+}
+sums();
+
+// a block run again declares its locals anew - each closure keeps the one it captured.
+fun chain(previous, f) {
+    fun both() {
+        if(previous != nil) previous();
+        f();
+    }
+    return both;
+}
+
+var all = nil;
+var i = 0;
+while(i < 3) {
+    var j = i;
+    fun show() {
+        print j;
+    }
+    all = chain(all, show);
+    i = i + 1;
+}
+all();
+
+fun counter() {
+    {
+        var n = 0;
+        fun increment() {
+            n = n + 1;
+            return n;
+        }
+        return increment;
+    }
+}
+var count = counter();
+count();
+print count();
@@ -0,0 +1,24 @@
+// Constant expressions are folded and dead branches dropped - with the values and the errors
+// the program would have had.
+print 1 + 2 * 3;
+print (1 + 2) * 3;
+print 10 / 4;
+print "con" + "cat" + "enated";
+print !true;
+print -(-4);
+print 1 < 2 == true;
+print nil == false;
+print "a" == "a";
+print true and "yes";
+print false or "other";
+print nil and 1;
+
+if(false) print "dead"; else print "live";
+while(false) print "never";
+if(1 > 2) {
+    print "dead";
+}
+print "after";
+
+// an error is not folded away.
+print 1 / 0;
@@ -0,0 +1,36 @@
+// Each iteration of a for loop has a variable of its own: the closures made in the body see
+// the value of their iteration, and a change the body makes is carried to the next one.
+fun chain(previous, f) {
+    fun both() {
+        if(previous != nil) previous();
+        f();
+    }
+    return both;
+}
+
+var all = nil;
+for(var i = 0; i < 3; i = i + 1) {
+    fun show() {
+        print i;
+    }
+    all = chain(all, show);
+}
+all();
+
+for(var i = 0; i < 6; i = i + 1) {
+    fun skip() {
+        i = i + 1;
+    }
+    skip();
+    print i;
+}
+
+var later = nil;
+for(var i = 0; i < 10; i = i + 1) {
+    fun show() {
+        print i;
+    }
+    later = show;
+    if(i == 4) break;
+}
+later();
@@ -0,0 +1,13 @@
+// A module runs once, at its first import, and its globals are the importer's.
+import "modules/shapes.jl";
+import "modules/math.jl";
+
+print Square(3).area();
+print square(4);
+print loads;
+
+// the module's code calls the global as it is now.
+fun square(x) {
+    return -1;
+}
+print Square(3).area();
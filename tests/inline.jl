@@ -0,0 +1,52 @@
+// Calls of small top-level functions are inlined - with the semantics of the call.
+fun square(x) {
+    return x * x;
+}
+
+fun sumOfSquares(a, b) {
+    return square(a) + square(b);
+}
+print sumOfSquares(3, 4);
+
+// an argument is evaluated once.
+var calls = 0;
+fun next() {
+    calls = calls + 1;
+    return calls;
+}
+
+fun twice(x) {
+    return x + x;
+}
+print twice(next());
+print calls;
+
+// a function declared again, or assigned, is called as it is at the time of the call.
+fun greeting() {
+    return "hello";
+}
+
+fun greet() {
+    return greeting();
+}
+print greet();
+
+fun greeting() {
+    return "goodbye";
+}
+print greet();
+
+fun one() {
+    return 1;
+}
+
+fun two() {
+    return 2;
+}
+
+fun pick() {
+    return one();
+}
+print pick();
+one = two;
+print pick();
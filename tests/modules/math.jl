@@ -0,0 +1,8 @@
+print "math loaded";
+
+fun square(x) {
+    return x * x;
+}
+
+var loads = 0;
+loads = loads + 1;
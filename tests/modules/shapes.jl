@@ -0,0 +1,13 @@
+import "math.jl";
+
+print "shapes loaded";
+
+class Square {
+    init(side) {
+        this.side = side;
+    }
+
+    area() {
+        return square(this.side);
+    }
+}
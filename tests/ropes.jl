@@ -0,0 +1,17 @@
+// Long strings built by concatenation behave as any string, on both backends: they print,
+// compare equal to the same text, and concatenate further.
+var s = "";
+for(var i = 0; i < 40; i = i + 1) {
+    s = s + "ab";
+}
+print s + "!";
+
+var t = "";
+for(var i = 0; i < 40; i = i + 1) {
+    t = t + "ab";
+}
+print s == t;
+print s == t + "";
+print s + "c" == t + "c";
+print s == "ab";
+print "x" + s == "x" + t;
@@ -0,0 +1,15 @@
+// Run from the snapshot of snapshot.prelude.jl (see the makefile's test target).
+print counter.increment();
+print addTen(5);
+// the two closures still share their variable.
+print shared.increment();
+print shared.get();
+print time() > 0;
+print text + "!";
+
+class Tally : Counter {
+    increment() {
+        return super.increment() * 100;
+    }
+}
+print Tally().increment();
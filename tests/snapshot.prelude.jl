@@ -0,0 +1,44 @@
+// The prelude of snapshot.jl - its globals are saved to a snapshot the test starts from.
+class Counter {
+    init() {
+        this.n = 0;
+    }
+
+    increment() {
+        this.n = this.n + 1;
+        return this.n;
+    }
+}
+
+fun adder(k) {
+    fun add(x) {
+        return x + k;
+    }
+    return add;
+}
+
+fun pair() {
+    var n = 0;
+    fun increment() {
+        n = n + 1;
+        return n;
+    }
+    fun get() {
+        return n;
+    }
+    class Pair {}
+    var p = Pair();
+    p.increment = increment;
+    p.get = get;
+    return p;
+}
+
+var counter = Counter();
+counter.increment();
+var addTen = adder(10);
+var shared = pair();
+shared.increment();
+var time = clock;
+var text = "";
+for(var i = 0; i < 40; i = i + 1) text = text + "ab";
+print "prelude";
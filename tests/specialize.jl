@@ -0,0 +1,39 @@
+// A binary node deoptimized while its operands are evaluated - the call in the right
+// operand of a + g(m) runs the same node with a string - still does the operation it
+// started with.
+fun g(m) {
+    if(m == 0) return 1;
+    if(m == 1) {
+        f("x", 2);
+        return 1;
+    }
+    return "y";
+}
+
+fun f(a, m) {
+    return a + g(m);
+}
+
+print f(1, 0);
+print f(10, 1);
+print f("a", 2);
+
+// the same, assigned to a local.
+fun h(m) {
+    if(m == 1) {
+        k("x", 2);
+        return 1;
+    }
+    if(m == 0) return 1;
+    return "y";
+}
+
+fun k(a, m) {
+    var sum = 0;
+    sum = a + h(m);
+    return sum;
+}
+
+print k(1, 0);
+print k(10, 1);
+print k("a", 2);
@@ -0,0 +1,32 @@
+// Calls in tail position do not grow the stack - recursion deeper than the JVM's stack.
+fun count(n, total) {
+    if(n == 0) return total;
+    return count(n - 1, total + 1);
+}
+print count(100000, 0);
+
+fun isEven(n) {
+    if(n == 0) return true;
+    return isOdd(n - 1);
+}
+
+fun isOdd(n) {
+    if(n == 0) return false;
+    return isEven(n - 1);
+}
+print isEven(100001);
+
+class Countdown {
+    run(n) {
+        if(n == 0) return "done";
+        return this.run(n - 1);
+    }
+}
+print Countdown().run(100000);
+
+// not a tail call - the result is used.
+fun depth(n) {
+    if(n == 0) return 0;
+    return 1 + depth(n - 1);
+}
+print depth(100);